@@ -0,0 +1,108 @@
+package com.etdm.udf.benchmark;
+
+import com.etdm.udf.AstraBitmap;
+import com.etdm.udf.AstraBitsetCodec;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.serde2.io.DateWritable;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+/**
+ * Synthetic columns: rows of one Hive type drawn from a given number of distinct values,
+ * as the writable objects a table scan hands to the evaluator.
+ */
+final class BenchmarkData {
+    /**
+     * Rows of a column, four per value at the largest benchmarked cardinality so that nearly
+     * all of its values are drawn. Every row is a writable object, far more rows do not fit the heap.
+     */
+    static final int ROWS = 1 << 22;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Value ranks in [0, cardinality). "uniform" draws every rank alike, "skewed" draws them
+     * log-uniformly, rank r with a probability of about 1/r like a Zipf column.
+     */
+    static long[] ranks(long cardinality, String skew, long seed) {
+        Random random = new Random(seed);
+        long[] ranks = new long[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            if ("skewed".equals(skew)) {
+                ranks[i] = (long) Math.pow(cardinality, random.nextDouble()) - 1;
+            } else {
+                ranks[i] = (long) (random.nextDouble() * cardinality);
+            }
+        }
+        return ranks;
+    }
+
+    static PrimitiveObjectInspector inspector(String type) {
+        switch (type) {
+            case "string":
+                return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+            case "bigint":
+                return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+            case "double":
+                return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+            case "decimal":
+                return PrimitiveObjectInspectorFactory.writableHiveDecimalObjectInspector;
+            case "date":
+                return PrimitiveObjectInspectorFactory.writableDateObjectInspector;
+            default:
+                throw new IllegalArgumentException("Unknown column type " + type);
+        }
+    }
+
+    static Object[] values(String type, long[] ranks) {
+        Object[] values = new Object[ranks.length];
+        for (int i = 0; i < ranks.length; i++) {
+            long rank = ranks[i];
+            switch (type) {
+                case "string":
+                    values[i] = new Text("customer-" + Long.toString(rank, 36));
+                    break;
+                case "bigint":
+                    values[i] = new LongWritable(1000000007L * rank);
+                    break;
+                case "double":
+                    values[i] = new DoubleWritable(rank / 8.0d);
+                    break;
+                case "decimal":
+                    values[i] = new HiveDecimalWritable(HiveDecimal.create(BigDecimal.valueOf(rank, 2)));
+                    break;
+                case "date":
+                    values[i] = new DateWritable((int) (rank % 3000000));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown column type " + type);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Blob of a column with this many distinct draws. "sparse" spreads them over the whole
+     * 31-bit domain, array containers of a few values each, "dense" packs them into four times
+     * as many positions, bitmap containers about a fifth full. The first {@code shared} draws
+     * are the same in every blob of that size and fill, the rest depend on the seed.
+     */
+    static byte[] blob(long bits, String fill, long shared, long seed) {
+        int range = "dense".equals(fill) ? (int) Math.min(Integer.MAX_VALUE, 4 * bits) : Integer.MAX_VALUE;
+        Random common = new Random(42);
+        Random own = new Random(seed);
+        AstraBitmap bitmap = new AstraBitmap();
+        for (long i = 0; i < bits; i++) {
+            bitmap.add((i < shared ? common : own).nextInt(range));
+        }
+        return new AstraBitsetCodec.Writer().write(bitmap, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+    }
+}
@@ -0,0 +1,72 @@
+package com.etdm.udf.benchmark;
+
+import com.etdm.udf.AstraUDAFBitset;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second through {@code BitSetEvaluator.iterate} in PARTIAL1 mode, the map side of astra_bitset.
+ * The cardinality sets how many of the rows repeat a value and how the bitset's containers fill up,
+ * it stays within a quarter of {@link BenchmarkData#ROWS} so that the distinct values are actually drawn.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class BitsetIterateBenchmark {
+
+    @Param({"string", "bigint", "double", "decimal", "date"})
+    public String type;
+
+    @Param({"1000", "100000", "1000000"})
+    public long cardinality;
+
+    @Param({"uniform", "skewed"})
+    public String skew;
+
+    private GenericUDAFEvaluator evaluator;
+    private GenericUDAFEvaluator.AggregationBuffer buffer;
+    private Object[] values;
+    private final Object[] row = new Object[1];
+
+    @Setup(Level.Trial)
+    public void setUp() throws HiveException {
+        evaluator = new AstraUDAFBitset.BitSetEvaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.PARTIAL1, new ObjectInspector[]{BenchmarkData.inspector(type)});
+        buffer = evaluator.getNewAggregationBuffer();
+        values = BenchmarkData.values(type, BenchmarkData.ranks(cardinality, skew, 1));
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() throws HiveException {
+        evaluator.reset(buffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public GenericUDAFEvaluator.AggregationBuffer iterate() throws HiveException {
+        for (Object value : values) {
+            row[0] = value;
+            evaluator.iterate(buffer, row);
+        }
+        return buffer;
+    }
+}
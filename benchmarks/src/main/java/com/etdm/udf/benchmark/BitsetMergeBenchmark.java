@@ -0,0 +1,81 @@
+package com.etdm.udf.benchmark;
+
+import com.etdm.udf.AstraUDAFBitset;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reduce side of astra_bitset: partial blobs OR-ed into a FINAL buffer, and the merged buffer encoded.
+ * merge reports partials per second, terminate reports blobs per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class BitsetMergeBenchmark {
+    static final int PARTIALS = 8;
+
+    /**
+     * Distinct positions per partial.
+     */
+    @Param({"10000", "1000000", "10000000"})
+    public long bits;
+
+    @Param({"sparse", "dense"})
+    public String fill;
+
+    private GenericUDAFEvaluator evaluator;
+    private GenericUDAFEvaluator.AggregationBuffer buffer;
+    private GenericUDAFEvaluator.AggregationBuffer merged;
+    private final BytesWritable[] partials = new BytesWritable[PARTIALS];
+
+    @Setup(Level.Trial)
+    public void setUp() throws HiveException {
+        evaluator = new AstraUDAFBitset.BitSetEvaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.FINAL,
+                new ObjectInspector[]{PrimitiveObjectInspectorFactory.writableBinaryObjectInspector});
+        for (int i = 0; i < PARTIALS; i++) {
+            partials[i] = new BytesWritable(BenchmarkData.blob(bits, fill, bits / 2, i));
+        }
+        buffer = evaluator.getNewAggregationBuffer();
+        merged = evaluator.getNewAggregationBuffer();
+        for (BytesWritable partial : partials) {
+            evaluator.merge(merged, partial);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARTIALS)
+    public GenericUDAFEvaluator.AggregationBuffer merge() throws HiveException {
+        evaluator.reset(buffer);
+        for (BytesWritable partial : partials) {
+            evaluator.merge(buffer, partial);
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    public Object terminate() throws HiveException {
+        return evaluator.terminate(merged);
+    }
+}
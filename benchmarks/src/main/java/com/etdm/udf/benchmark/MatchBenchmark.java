@@ -0,0 +1,102 @@
+package com.etdm.udf.benchmark;
+
+import com.etdm.udf.AstraUDTFMatch;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs per second through {@code AstraUDTFMatch.process}, the way a cross join of column bitsets feeds it.
+ * With the cache on every blob is decoded once and the pairs measure the intersection,
+ * with it off every pair pays for decoding both blobs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class MatchBenchmark {
+    static final int COLUMNS = 4;
+
+    /**
+     * Distinct positions per column.
+     */
+    @Param({"10000", "1000000", "10000000"})
+    public long bits;
+
+    @Param({"sparse", "dense"})
+    public String fill;
+
+    /**
+     * Share of the positions common to all columns.
+     */
+    @Param({"0.01", "0.5"})
+    public double overlap;
+
+    @Param({"true", "false"})
+    public boolean cache;
+
+    private AstraUDTFMatch udtf;
+    private final byte[][] blobs = new byte[COLUMNS][];
+    private final Object[] row = new Object[2];
+    private long rows;
+
+    @Setup(Level.Trial)
+    public void setUp() throws HiveException {
+        JobConf jobConf = new JobConf();
+        jobConf.setLong("astra.match.cache.bytes", cache ? 1L << 30 : 0);
+        udtf = new AstraUDTFMatch();
+        udtf.configure(MapredContext.init(true, jobConf));
+        udtf.initialize(new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector,
+                PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector});
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object input) {
+                rows++;
+            }
+        });
+        for (int i = 0; i < COLUMNS; i++) {
+            blobs[i] = BenchmarkData.blob(bits, fill, (long) (bits * overlap), i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws HiveException {
+        udtf.close();
+        MapredContext.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS * (COLUMNS - 1) / 2)
+    public long process() throws HiveException {
+        for (int i = 0; i < COLUMNS; i++) {
+            for (int j = i + 1; j < COLUMNS; j++) {
+                row[0] = blobs[i];
+                row[1] = blobs[j];
+                udtf.process(row);
+            }
+        }
+        return rows;
+    }
+}
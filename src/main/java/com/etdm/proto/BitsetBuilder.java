@@ -0,0 +1,248 @@
+package com.etdm.proto;
+
+import com.etdm.udf.AstraBitmap;
+import com.etdm.udf.AstraBitsetCodec;
+import com.etdm.udf.AstraValueHasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Bitset files of CSV columns, the offline counterpart of astra_bitset. Each CSV is memory-mapped
+ * and cut at line breaks into chunks that are hashed in parallel, one bitmap per column and chunk,
+ * then the chunks are OR-ed and every column is written as {@code <file name>.<column name>}.
+ * <p>
+ * The first line names the columns. Fields are comma-separated, a quoted field may hold commas and
+ * doubled quotes but no line break. An empty unquoted field is a null. Values are hashed as
+ * UTF-8 text, like the STRING columns of astra_bitset.
+ */
+class BitsetBuilder {
+    static Logger logger = Logger.getLogger(BitsetBuilder.class.toString());
+
+    /**
+     * Upper bound of a mapped chunk, a MappedByteBuffer is int-indexed.
+     */
+    static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final String hashSpec;
+    private final int threads;
+
+    BitsetBuilder(String hashSpec, int threads) {
+        this.hashSpec = hashSpec;
+        this.threads = threads;
+    }
+
+    private AstraValueHasher hasher() {
+        return hashSpec == null ? new AstraValueHasher() : AstraValueHasher.of(hashSpec);
+    }
+
+    void build(Path input, Path outputDir) throws IOException, InterruptedException, ExecutionException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(input)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(input, "*.csv")) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            files.sort(null);
+        } else {
+            files.add(input);
+        }
+        Files.createDirectories(outputDir);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Path file : files) {
+                build(pool, file, outputDir);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void build(ExecutorService pool, Path file, Path outputDir)
+            throws IOException, InterruptedException, ExecutionException {
+        String table = file.getFileName().toString();
+        if (table.toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            table = table.substring(0, table.length() - 4);
+        }
+        List<Future<AstraBitmap[]>> chunks = new ArrayList<>();
+        String[] columns;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long headerEnd = nextLine(channel, 0);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd);
+            columns = parseHeader(header);
+            int chunkCount = (int) Math.max(threads, (size - headerEnd + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+            long start = headerEnd;
+            for (int c = 1; c <= chunkCount && start < size; c++) {
+                long end = c == chunkCount ? size : nextLine(channel, headerEnd + (size - headerEnd) * c / chunkCount);
+                if (end > start) {
+                    final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    final int columnCount = columns.length;
+                    chunks.add(pool.submit(new Callable<AstraBitmap[]>() {
+                        @Override
+                        public AstraBitmap[] call() {
+                            return hashChunk(chunk, columnCount);
+                        }
+                    }));
+                }
+                start = Math.max(start, end);
+            }
+        }
+        AstraBitmap[] bitmaps = null;
+        for (Future<AstraBitmap[]> chunk : chunks) {
+            AstraBitmap[] partial = chunk.get();
+            if (bitmaps == null) {
+                bitmaps = partial;
+            } else {
+                for (int c = 0; c < columns.length; c++) {
+                    bitmaps[c].or(partial[c]);
+                }
+            }
+        }
+        AstraValueHasher hasher = hasher();
+        AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+        for (int c = 0; c < columns.length; c++) {
+            AstraBitmap bitmap = bitmaps != null ? bitmaps[c] : new AstraBitmap();
+            logger.info(table + "." + columns[c] + "'s cardinality is " + bitmap.cardinality());
+            Files.write(
+                    outputDir.resolve(table + "." + columns[c]),
+                    writer.write(bitmap, hasher.hashId(), (byte) hasher.domainBits()),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            );
+        }
+    }
+
+    /**
+     * Offset just past the first line break at or after from, the file size when there is none.
+     */
+    static long nextLine(FileChannel channel, long from) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(1 << 16);
+        long position = from;
+        while (true) {
+            block.clear();
+            int read = channel.read(block, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (block.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    private static String[] parseHeader(ByteBuffer header) {
+        FieldReader reader = new FieldReader(header);
+        List<String> columns = new ArrayList<>();
+        if (!reader.nextLine()) {
+            return new String[0];
+        }
+        while (reader.nextField()) {
+            columns.add(new String(reader.field, 0, reader.length, StandardCharsets.UTF_8).trim());
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    private AstraBitmap[] hashChunk(ByteBuffer chunk, int columnCount) {
+        AstraValueHasher hasher = hasher();
+        AstraBitmap[] bitmaps = new AstraBitmap[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            bitmaps[c] = new AstraBitmap();
+        }
+        FieldReader reader = new FieldReader(chunk);
+        while (reader.nextLine()) {
+            for (int c = 0; reader.nextField(); c++) {
+                if (c < columnCount && (reader.length > 0 || reader.quoted)) {
+                    bitmaps[c].add(hasher.position(hasher.hashUtf8(reader.field, 0, reader.length)));
+                }
+            }
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Splits the lines of a buffer into fields. The bytes of the current field, unquoted,
+     * are copied into a reusable array for the hasher.
+     */
+    static final class FieldReader {
+        private final ByteBuffer buffer;
+        private int position;
+        private boolean endOfLine = true;
+        byte[] field = new byte[256];
+        int length;
+        boolean quoted;
+
+        FieldReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Moves to the next line, skipping what is left of the current one, false at the end of the buffer.
+         */
+        boolean nextLine() {
+            while (nextField()) {
+                // skips the rest of the current line
+            }
+            endOfLine = false;
+            return position < buffer.limit();
+        }
+
+        /**
+         * Reads the next field of the current line, false past its last one.
+         */
+        boolean nextField() {
+            if (endOfLine) {
+                return false;
+            }
+            length = 0;
+            quoted = false;
+            boolean inQuotes = false;
+            while (position < buffer.limit()) {
+                byte b = buffer.get(position++);
+                if (inQuotes) {
+                    if (b != '"') {
+                        append(b);
+                    } else if (position < buffer.limit() && buffer.get(position) == '"') {
+                        append(b);
+                        position++;
+                    } else {
+                        inQuotes = false;
+                    }
+                } else if (b == '"') {
+                    inQuotes = true;
+                    quoted = true;
+                } else if (b == ',') {
+                    return true;
+                } else if (b == '\n') {
+                    endOfLine = true;
+                    return true;
+                } else if (b != '\r') {
+                    append(b);
+                }
+            }
+            endOfLine = true;
+            return true;
+        }
+
+        private void append(byte b) {
+            if (length == field.length) {
+                byte[] grown = new byte[field.length * 2];
+                System.arraycopy(field, 0, grown, 0, length);
+                field = grown;
+            }
+            field[length++] = b;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.etdm.proto;
+
+import com.etdm.udf.AstraBitmap;
+import com.etdm.udf.AstraBitsetCodec;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Overlap of every pair of bitset files in a directory, the offline counterpart of astra_match.
+ * The files are memory-mapped and intersected in place with {@link AstraBitsetCodec.Intersector}.
+ * <p>
+ * Columns are grouped into tiles of at most half the working set bytes and the pairs are
+ * evaluated tile pair by tile pair, so the mapped pages touched at any time stay within the
+ * working set however many files there are. The pairs of a tile pair run on all threads,
+ * their rows are written in file name order.
+ * <p>
+ * A pair with a folded side is estimated on decoded bitmaps. Each column of the tile pair is decoded
+ * once per width it is compared at, straight to that width, and the copies are dropped with the tile pair.
+ */
+class BitsetMatcher {
+    static Logger logger = Logger.getLogger(BitsetMatcher.class.toString());
+
+    static final String HEADER = "column_0,column_1,match,cardinality_0,cardinality_1,union_size,"
+            + "jaccard,containment_0,containment_1";
+
+    private final int threads;
+    private final long workingSetBytes;
+    private final AtomicLong skippedPairs = new AtomicLong();
+    private final ConcurrentMap<Long, AstraBitmap> decoded = new ConcurrentHashMap<>();
+    private final ThreadLocal<AstraBitsetCodec.Intersector> intersector = new ThreadLocal<AstraBitsetCodec.Intersector>() {
+        @Override
+        protected AstraBitsetCodec.Intersector initialValue() {
+            return new AstraBitsetCodec.Intersector();
+        }
+    };
+
+    BitsetMatcher(int threads, long workingSetBytes) {
+        this.threads = threads;
+        this.workingSetBytes = workingSetBytes;
+    }
+
+    static final class Column {
+        final String name;
+        final ByteBuffer blob;
+        final long cardinality;
+        final boolean folded;
+        /**
+         * Widest fold the column can be compared at.
+         */
+        final int width;
+
+        Column(String name, ByteBuffer blob) {
+            this.name = name;
+            this.blob = blob;
+            this.cardinality = AstraBitsetCodec.cardinality(blob);
+            this.folded = AstraBitsetCodec.isFolded(blob);
+            this.width = folded ? AstraBitsetCodec.domainBits(blob) : AstraBitmap.MAX_FOLD_BITS;
+        }
+
+        long bytes() {
+            return blob.limit();
+        }
+
+        /**
+         * Decodes the blob folded to 2^bits positions, at most its own width.
+         */
+        AstraBitmap toBitmap(int bits) throws IOException {
+            AstraBitmap bitmap = new AstraBitmap();
+            bitmap.fold(bits);
+            AstraBitsetCodec.orInto(bitmap, blob);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Maps a bitset file. A legacy blob is decoded and re-encoded once so that it too is read in place.
+     */
+    static Column open(Path file) throws IOException {
+        ByteBuffer blob;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Bitset file " + file + " is over 2GB");
+            }
+            blob = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (AstraBitsetCodec.isLegacy(blob)) {
+            byte[] bytes = new byte[blob.remaining()];
+            blob.get(bytes);
+            blob = ByteBuffer.wrap(new AstraBitsetCodec.Writer().write(AstraBitsetCodec.toBitmap(bytes),
+                    AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31));
+        }
+        return new Column(file.getFileName().toString(), AstraBitsetCodec.open(blob));
+    }
+
+    void match(Path inputDir, Path output) throws IOException, InterruptedException, ExecutionException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (Files.isRegularFile(file) && !name.startsWith(".") && !name.endsWith(".csv")) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null);
+        List<Column> columns = new ArrayList<>(files.size());
+        for (Path file : files) {
+            try {
+                columns.add(open(file));
+            } catch (IOException e) {
+                logger.warning("Skipping " + file + ": " + e.getMessage());
+            }
+        }
+        List<int[]> tiles = tiles(columns, workingSetBytes / 2);
+        logger.info(columns.size() + " bitsets in " + tiles.size() + " tiles");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long rows = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (int t = 0; t < tiles.size(); t++) {
+                for (int u = t; u < tiles.size(); u++) {
+                    List<Future<StringBuilder>> lefts = new ArrayList<>();
+                    int[] leftTile = tiles.get(t);
+                    final int[] rightTile = tiles.get(u);
+                    final List<Column> all = columns;
+                    for (int l = leftTile[0]; l < leftTile[1]; l++) {
+                        final int left = l;
+                        lefts.add(pool.submit(new Callable<StringBuilder>() {
+                            @Override
+                            public StringBuilder call() throws IOException {
+                                return matchLeft(all, left, Math.max(left + 1, rightTile[0]), rightTile[1]);
+                            }
+                        }));
+                    }
+                    for (Future<StringBuilder> left : lefts) {
+                        StringBuilder lines = left.get();
+                        writer.append(lines);
+                        rows += count(lines);
+                    }
+                    decoded.clear();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        logger.info(rows + " matching pairs written to " + output + ", " + skippedPairs.get() + " incompatible pairs skipped");
+    }
+
+    /**
+     * [from, to) column ranges of at most maxBytes each, a single larger column makes a tile of its own.
+     */
+    static List<int[]> tiles(List<Column> columns, long maxBytes) {
+        List<int[]> tiles = new ArrayList<>();
+        int from = 0;
+        long bytes = 0;
+        for (int c = 0; c < columns.size(); c++) {
+            if (c > from && bytes + columns.get(c).bytes() > maxBytes) {
+                tiles.add(new int[]{from, c});
+                from = c;
+                bytes = 0;
+            }
+            bytes += columns.get(c).bytes();
+        }
+        if (from < columns.size()) {
+            tiles.add(new int[]{from, columns.size()});
+        }
+        return tiles;
+    }
+
+    /**
+     * CSV rows of the left column against columns [from, to), only the pairs that share a value.
+     */
+    private StringBuilder matchLeft(List<Column> columns, int left, int from, int to) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        Column l = columns.get(left);
+        if (l.cardinality == 0) {
+            return lines;
+        }
+        AstraBitsetCodec.Domain domain = new AstraBitsetCodec.Domain();
+        for (int right = from; right < to; right++) {
+            Column r = columns.get(right);
+            if (r.cardinality == 0) {
+                continue;
+            }
+            domain.reset();
+            try {
+                domain.check(l.blob);
+                domain.check(r.blob);
+            } catch (IOException e) {
+                skippedPairs.incrementAndGet();
+                continue;
+            }
+            long matched;
+            if (l.folded || r.folded) {
+                int bits = Math.min(l.width, r.width);
+                matched = decoded(columns, left, bits).estimateAndCardinality(decoded(columns, right, bits));
+            } else {
+                matched = intersector.get().andCardinality(l.blob, r.blob);
+            }
+            if (matched > 0) {
+                long union = l.cardinality + r.cardinality - matched;
+                lines.append(quote(l.name)).append(',')
+                        .append(quote(r.name)).append(',')
+                        .append(matched).append(',')
+                        .append(l.cardinality).append(',')
+                        .append(r.cardinality).append(',')
+                        .append(union).append(',')
+                        .append((double) matched / union).append(',')
+                        .append((double) matched / l.cardinality).append(',')
+                        .append((double) matched / r.cardinality)
+                        .append(System.lineSeparator());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Column of the current tile pair decoded at a width, shared by the threads. Two threads may
+     * race to decode the same one, the first copy stored is kept.
+     */
+    private AstraBitmap decoded(List<Column> columns, int index, int bits) throws IOException {
+        Long key = (long) index << Byte.SIZE | bits;
+        AstraBitmap bitmap = decoded.get(key);
+        if (bitmap == null) {
+            bitmap = columns.get(index).toBitmap(bits);
+            AstraBitmap stored = decoded.putIfAbsent(key, bitmap);
+            if (stored != null) {
+                bitmap = stored;
+            }
+        }
+        return bitmap;
+    }
+
+    private static long count(StringBuilder lines) {
+        long count = 0;
+        for (int i = 0; i < lines.length(); i++) {
+            if (lines.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -1,11 +1,8 @@
 package com.etdm.proto;
 
 
-import com.zaxxer.sparsebits.SparseBitSet;
+import com.etdm.udf.AstraBitsetCodec;
 
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.OutputStream;
 import java.nio.file.*;
 import java.sql.*;
 import java.util.Properties;
@@ -14,24 +11,79 @@ import java.util.logging.Logger;
 public class Launcher {
     static Logger logger = Logger.getLogger(Launcher.class.toString());
 
-    static  String query =
-            "select \n"+
-            "astra_bs_0(t.COLLATERAL_ASSESSMENT_DATE,0) as COLLATERAL_ASSESSMENT_DATE,\n"+
-            "astra_bs_0(t.COLLATERAL_VALUE_CURRENCY,0) as COLLATERAL_VALUE_CURRENCY,\n"+
-            "astra_bs_0(t.COLLATERAL_VALUE,0) as COLLATERAL_VALUE,\n"+
-            "astra_bs_0(t.COLLATERAL_TYPE,0) as COLLATERAL_TYPE,\n"+
-            "astra_bs_0(t.DUE_DATE,0) as DUE_DATE,\n"+
-            "astra_bs_0(t.CURRENCY,0) as CURRENCY,\n"+
-            "astra_bs_0(t.ORIGINAL_AMOUNT,0) as ORIGINAL_AMOUNT,\n"+
-            "astra_bs_0(t.LIABILITY_TYPE,0) as LIABILITY_TYPE,\n"+
-            "astra_bs_0(t.LIABILITY_NUMBER,0) as LIABILITY_NUMBER ,\n"+
-            "astra_bs_0(t.LIABILITY_DATE,0) as LIABILITY_DATE,\n"+
-            "astra_bs_0(t.INFORMER_DEAL_ID,0) as INFORMER_DEAL_ID,\n"+
-            "astra_bs_0(t.INFORMER_CODE,0) as INFORMER_CODE,\n"+
-            "astra_bs_0(t.ID,0) as ID\n"+
-            "from cra.liabilities t\n";
+    static String table = "cra.liabilities";
+
+    static String[] columns = {
+            "COLLATERAL_ASSESSMENT_DATE",
+            "COLLATERAL_VALUE_CURRENCY",
+            "COLLATERAL_VALUE",
+            "COLLATERAL_TYPE",
+            "DUE_DATE",
+            "CURRENCY",
+            "ORIGINAL_AMOUNT",
+            "LIABILITY_TYPE",
+            "LIABILITY_NUMBER",
+            "LIABILITY_DATE",
+            "INFORMER_DEAL_ID",
+            "INFORMER_CODE",
+            "ID"
+    };
+
+    /**
+     * One astra_bs_n call profiles every column in a single pass, its struct fields are
+     * selected back out as one binary column per table column.
+     */
+    static String query(String table, String[] columns) {
+        StringBuilder fields = new StringBuilder();
+        StringBuilder arguments = new StringBuilder();
+        for (int c = 0; c < columns.length; c++) {
+            if (c > 0) {
+                fields.append(",\n");
+                arguments.append(", ");
+            }
+            fields.append("b.bs.col").append(c + 1).append(" as ").append(columns[c]);
+            arguments.append("t.").append(columns[c]);
+        }
+        return "select \n" + fields + "\n" +
+                "from (select astra_bs_n(" + arguments + ") as bs from " + table + " t) b\n";
+    }
+
+    static final String USAGE = "usage:\n"
+            + "  fetch [dir]                                      bitsets of the table columns over JDBC, one file per column\n"
+            + "  build <csv file|dir> <dir> [hash[:bits]] [threads]  bitset files of the CSV columns\n"
+            + "  match <dir> <csv> [threads] [working set MB]     overlap of every pair of bitset files";
 
     public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "fetch";
+        int threads = Runtime.getRuntime().availableProcessors();
+        switch (mode) {
+            case "fetch":
+                fetch(Paths.get(args.length > 1 ? args[1] : "."));
+                break;
+            case "build":
+                if (args.length < 3) {
+                    System.err.println(USAGE);
+                    System.exit(2);
+                }
+                new BitsetBuilder(args.length > 3 ? args[3] : null, args.length > 4 ? Integer.parseInt(args[4]) : threads)
+                        .build(Paths.get(args[1]), Paths.get(args[2]));
+                break;
+            case "match":
+                if (args.length < 3) {
+                    System.err.println(USAGE);
+                    System.exit(2);
+                }
+                new BitsetMatcher(args.length > 3 ? Integer.parseInt(args[3]) : threads,
+                        (args.length > 4 ? Long.parseLong(args[4]) : 1024) << 20)
+                        .match(Paths.get(args[1]), Paths.get(args[2]));
+                break;
+            default:
+                System.err.println(USAGE);
+                System.exit(2);
+        }
+    }
+
+    static void fetch(Path dir) throws Exception {
         //System.out.println(org.apache.hadoop.util.VersionInfo.getVersion());
         Driver d = (Driver)Class.forName("org.apache.hive.jdbc.HiveDriver").newInstance();
         Properties  props = new Properties();
@@ -46,7 +98,7 @@ public class Launcher {
             try(PreparedStatement p = connection.prepareStatement("add jar hdfs:///apps/udf/u.jar")) {
                 p.execute();
             }
-            try(PreparedStatement p = connection.prepareStatement("create temporary function astra_bs_0 as 'com.etdm.udf.AstraUDAFBitset'")) {
+            try(PreparedStatement p = connection.prepareStatement("create temporary function astra_bs_n as 'com.etdm.udf.AstraUDAFMultiBitset'")) {
                 p.execute();
             }
             try (PreparedStatement p = connection.prepareStatement("use cra")) {
@@ -58,21 +110,20 @@ public class Launcher {
             }
 
 
-            try(PreparedStatement p = connection.prepareStatement(query);
+            try(PreparedStatement p = connection.prepareStatement(query(table, columns));
                 ResultSet rs = p.executeQuery()){
                 if (rs.next()) {
                     ResultSetMetaData rsm = rs.getMetaData();
                     for (int c = 1; c<=rsm.getColumnCount();c++) {
-                        InputStream is = rs.getBinaryStream(c);
-                        try (ObjectInputStream ois = new ObjectInputStream(is)) {
-                            SparseBitSet bs = (SparseBitSet) ois.readObject();
-                            logger.info(rsm.getColumnName(c)+"'s cardinality is "+bs.cardinality());
+                        byte[] blob = rs.getBytes(c);
+                        if (blob == null) {
+                            continue;
                         }
-                        is.reset();
-                        Files.copy(
-                                is,
-                                Paths.get(".",rsm.getColumnName(c)),
-                                StandardCopyOption.REPLACE_EXISTING
+                        logger.info(rsm.getColumnName(c)+"'s cardinality is "+AstraBitsetCodec.cardinality(blob));
+                        Files.write(
+                                dir.resolve(rsm.getColumnName(c)),
+                                blob,
+                                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
                         );
                     }
                 }
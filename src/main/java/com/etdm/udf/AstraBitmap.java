@@ -0,0 +1,575 @@
+package com.etdm.udf;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.etdm.udf.AstraBitsetCodec.ARRAY_MAX_CARDINALITY;
+import static com.etdm.udf.AstraBitsetCodec.BITMAP_WORDS;
+import static com.etdm.udf.AstraBitsetCodec.CONTAINER_BITS;
+import static com.etdm.udf.AstraBitsetCodec.CONTAINER_MASK;
+
+/**
+ * In-memory bitset laid out like the blob: 65536-bit containers ordered by key,
+ * each one a sorted array of low bits until it holds more than
+ * {@link AstraBitsetCodec#ARRAY_MAX_CARDINALITY} values and a plain bitmap after that.
+ * Serialized containers are OR-ed in whole, see {@link AstraBitsetCodec#orInto}.
+ * <p>
+ * A bitmap can be folded to a smaller domain of 2^bits positions, position {@code p} becomes
+ * {@code p mod 2^bits}. A folded bitmap has a fixed upper size and stays mergeable with any
+ * bitmap folded to the same width, its distinct count and intersections are estimated
+ * by linear counting.
+ */
+public final class AstraBitmap {
+    private static final int INITIAL_CONTAINERS = 16;
+    private static final int INITIAL_ARRAY = 4;
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 8;
+    private static final int DIRECTORY_ENTRY = 4 + 4 + 2 * REFERENCE;
+    private static final int BASE_SIZE = 2 * OBJECT_HEADER + 4 * REFERENCE + 4 * OBJECT_HEADER;
+    static final int MIN_FOLD_BITS = CONTAINER_BITS;
+    public static final int MAX_FOLD_BITS = 30;
+
+    private int size;
+    private int[] keys = new int[INITIAL_CONTAINERS];
+    private int[] cardinalities = new int[INITIAL_CONTAINERS];
+    private char[][] arrays = new char[INITIAL_CONTAINERS][];
+    private long[][] bitmaps = new long[INITIAL_CONTAINERS][];
+    private long cardinality;
+    private int lastIndex = -1;
+    private int foldBits;
+    private long positionMask = -1L;
+    private long sizeInBytes = BASE_SIZE + (long) INITIAL_CONTAINERS * DIRECTORY_ENTRY;
+
+    /**
+     * @param position a bit of the domain, up to {@link AstraBitsetCodec#MAX_DOMAIN_BITS} wide
+     */
+    public boolean add(long position) {
+        position &= positionMask;
+        int index = containerIndex((int) (position >>> CONTAINER_BITS));
+        if (addLow(index, (char) (position & CONTAINER_MASK))) {
+            cardinality++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(long position) {
+        position &= positionMask;
+        int index = Arrays.binarySearch(keys, 0, size, (int) (position >>> CONTAINER_BITS));
+        if (index < 0) {
+            return false;
+        }
+        int low = (int) position & CONTAINER_MASK;
+        if (bitmaps[index] != null) {
+            return (bitmaps[index][low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch(arrays[index], 0, cardinalities[index], (char) low) >= 0;
+    }
+
+    /**
+     * Number of set bits. For a folded bitmap that is less than the number of distinct values added,
+     * see {@link #distinctCount()}.
+     */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    public long distinctCount() {
+        return foldBits == 0 ? cardinality : Math.round(linearCount(cardinality, foldBits));
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Approximate heap retained by the bitmap: its directory arrays plus every container.
+     * Kept up to date as containers are created and grown, so it is cheap to poll per row.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public boolean isFolded() {
+        return foldBits != 0;
+    }
+
+    /**
+     * Width of the folded domain, 0 when the bitmap is not folded.
+     */
+    public int foldBits() {
+        return foldBits;
+    }
+
+    /**
+     * Folds the bitmap in place to 2^bits positions. A bitmap already folded to fewer bits is left as is.
+     */
+    public void fold(int bits) {
+        if (foldBits != 0 && foldBits <= bits) {
+            return;
+        }
+        AstraBitmap folded = folded(bits);
+        size = folded.size;
+        keys = folded.keys;
+        cardinalities = folded.cardinalities;
+        arrays = folded.arrays;
+        bitmaps = folded.bitmaps;
+        cardinality = folded.cardinality;
+        lastIndex = -1;
+        foldBits = folded.foldBits;
+        positionMask = folded.positionMask;
+        sizeInBytes = folded.sizeInBytes;
+    }
+
+    /**
+     * Copy of the bitmap folded to 2^bits positions, or to its own width when that is smaller.
+     */
+    public AstraBitmap folded(int bits) {
+        if (bits < MIN_FOLD_BITS || bits > MAX_FOLD_BITS) {
+            throw new IllegalArgumentException("Fold width must be within " + MIN_FOLD_BITS + ".." + MAX_FOLD_BITS + ": " + bits);
+        }
+        AstraBitmap folded = new AstraBitmap();
+        folded.foldBits = foldBits != 0 ? Math.min(foldBits, bits) : bits;
+        folded.positionMask = (1L << folded.foldBits) - 1;
+        int keyMask = folded.keyMask();
+        for (int i = 0; i < size; i++) {
+            folded.orContainer(keys[i] & keyMask, this, i);
+        }
+        return folded;
+    }
+
+    /**
+     * ORs another bitmap of the same width into this one, container by container.
+     */
+    public void or(AstraBitmap other) {
+        if (other.foldBits != foldBits) {
+            throw new IllegalArgumentException("Bitmaps folded to " + foldBits + " and " + other.foldBits + " bits");
+        }
+        for (int i = 0; i < other.size; i++) {
+            orContainer(other.keys[i], other, i);
+        }
+    }
+
+    /**
+     * Widest fold whose fully populated bitmap takes at most half of maxBytes,
+     * the rest is left for the container directory of the bitmap being folded.
+     */
+    static int foldBits(long maxBytes) {
+        int bits = 63 - Long.numberOfLeadingZeros(Math.max(1, maxBytes) * 4);
+        return Math.max(MIN_FOLD_BITS, Math.min(MAX_FOLD_BITS, bits));
+    }
+
+    /**
+     * Linear counting: distinct values that leave this many bits set out of 2^bits.
+     * A saturated bitmap reports the expected count that fills every bit.
+     */
+    static double linearCount(long ones, int bits) {
+        double m = (double) (1L << bits);
+        if (ones >= m) {
+            return m * Math.log(m);
+        }
+        return -m * Math.log1p(-ones / m);
+    }
+
+    /**
+     * {@link #andCardinality} of exact bitmaps. When either side is folded both are brought to the
+     * narrower width and the intersection is estimated as |A| + |B| - |A or B|, each by linear counting.
+     */
+    public long estimateAndCardinality(AstraBitmap other) {
+        if (foldBits == 0 && other.foldBits == 0) {
+            return andCardinality(other);
+        }
+        int bits = Math.min(foldBits == 0 ? MAX_FOLD_BITS : foldBits, other.foldBits == 0 ? MAX_FOLD_BITS : other.foldBits);
+        AstraBitmap left = foldBits == bits ? this : folded(bits);
+        AstraBitmap right = other.foldBits == bits ? other : other.folded(bits);
+        long matched = left.andCardinality(right);
+        double estimate = linearCount(left.cardinality, bits) + linearCount(right.cardinality, bits)
+                - linearCount(left.cardinality + right.cardinality - matched, bits);
+        return Math.max(0, Math.min(Math.round(estimate), Math.min(left.distinctCount(), right.distinctCount())));
+    }
+
+    /**
+     * Size of the intersection. Containers are matched by key, keys present on one side only
+     * are skipped by binary search, bitmap pairs are AND-ed word by word and popcounted.
+     */
+    public long andCardinality(AstraBitmap other) {
+        long matched = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            int key = keys[i];
+            int otherKey = other.keys[j];
+            if (key < otherKey) {
+                i = advance(keys, i, size, otherKey);
+            } else if (key > otherKey) {
+                j = advance(other.keys, j, other.size, key);
+            } else {
+                matched += andCardinality(i, other, j);
+                i++;
+                j++;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Upper bound of {@link #andCardinality}: the smaller container cardinality summed over
+     * the keys both sides hold. Walks the directories only, no container is touched.
+     */
+    public long andCardinalityBound(AstraBitmap other) {
+        long bound = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            int key = keys[i];
+            int otherKey = other.keys[j];
+            if (key < otherKey) {
+                i = advance(keys, i, size, otherKey);
+            } else if (key > otherKey) {
+                j = advance(other.keys, j, other.size, key);
+            } else {
+                bound += Math.min(cardinalities[i], other.cardinalities[j]);
+                i++;
+                j++;
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Coarse summary of the occupied containers: bit {@code key % 64} is set for every key.
+     * Two bitmaps whose summaries do not intersect share no value.
+     */
+    public long occupancy() {
+        long mask = 0;
+        for (int i = 0; i < size; i++) {
+            mask |= 1L << keys[i];
+        }
+        return mask;
+    }
+
+    private int andCardinality(int index, AstraBitmap other, int otherIndex) {
+        long[] words = bitmaps[index];
+        long[] otherWords = other.bitmaps[otherIndex];
+        if (words != null && otherWords != null) {
+            int matched = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                matched += Long.bitCount(words[w] & otherWords[w]);
+            }
+            return matched;
+        }
+        if (words != null) {
+            return andCardinality(other.arrays[otherIndex], other.cardinalities[otherIndex], words);
+        }
+        if (otherWords != null) {
+            return andCardinality(arrays[index], cardinalities[index], otherWords);
+        }
+        return andCardinality(arrays[index], cardinalities[index], other.arrays[otherIndex], other.cardinalities[otherIndex]);
+    }
+
+    private static int andCardinality(char[] values, int count, long[] words) {
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            matched += (int) (words[values[i] >>> 6] >>> values[i]) & 1;
+        }
+        return matched;
+    }
+
+    private static int andCardinality(char[] a, int aCount, char[] b, int bCount) {
+        int matched = 0;
+        int i = 0;
+        int j = 0;
+        while (i < aCount && j < bCount) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                matched++;
+                i++;
+                j++;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * First index at or after from whose key is not below the target.
+     */
+    private static int advance(int[] keys, int from, int to, int target) {
+        if (from + 1 < to && keys[from + 1] >= target) {
+            return from + 1;
+        }
+        int index = Arrays.binarySearch(keys, from + 1, to, target);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    public void clear() {
+        Arrays.fill(arrays, 0, size, null);
+        Arrays.fill(bitmaps, 0, size, null);
+        size = 0;
+        cardinality = 0;
+        lastIndex = -1;
+        foldBits = 0;
+        positionMask = -1L;
+        sizeInBytes = BASE_SIZE + (long) keys.length * DIRECTORY_ENTRY;
+    }
+
+    /**
+     * Mask of the container keys that exist in this bitmap's domain, applied to incoming keys when folded.
+     */
+    int keyMask() {
+        return (int) (positionMask >>> CONTAINER_BITS);
+    }
+
+    int containerCount() {
+        return size;
+    }
+
+    int key(int index) {
+        return keys[index];
+    }
+
+    int cardinality(int index) {
+        return cardinalities[index];
+    }
+
+    /**
+     * Sorted low bits of an array container, null for a bitmap container.
+     */
+    char[] array(int index) {
+        return arrays[index];
+    }
+
+    /**
+     * Words of a bitmap container, null for an array container.
+     */
+    long[] bitmap(int index) {
+        return bitmaps[index];
+    }
+
+    void orArray(int key, ByteBuffer buffer, int offset, int count) {
+        int index = containerIndex(key);
+        int before = cardinalities[index];
+        if (bitmaps[index] == null && before + count > ARRAY_MAX_CARDINALITY) {
+            toBitmap(index);
+        }
+        long[] words = bitmaps[index];
+        if (words != null) {
+            int added = 0;
+            for (int i = 0; i < count; i++, offset += 2) {
+                int low = buffer.getChar(offset);
+                long mask = 1L << low;
+                if ((words[low >>> 6] & mask) == 0) {
+                    words[low >>> 6] |= mask;
+                    added++;
+                }
+            }
+            cardinalities[index] = before + added;
+        } else {
+            char[] current = arrays[index];
+            char[] merged = new char[Math.max(INITIAL_ARRAY, before + count)];
+            int i = 0, j = 0, n = 0;
+            while (i < before && j < count) {
+                char a = current[i];
+                char b = buffer.getChar(offset + 2 * j);
+                if (a < b) {
+                    merged[n++] = a;
+                    i++;
+                } else if (a > b) {
+                    merged[n++] = b;
+                    j++;
+                } else {
+                    merged[n++] = a;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < before) {
+                merged[n++] = current[i++];
+            }
+            while (j < count) {
+                merged[n++] = buffer.getChar(offset + 2 * j++);
+            }
+            sizeInBytes += 2L * (merged.length - current.length);
+            arrays[index] = merged;
+            cardinalities[index] = n;
+        }
+        cardinality += cardinalities[index] - before;
+    }
+
+    void orBitmap(int key, ByteBuffer buffer, int offset) {
+        int index = containerIndex(key);
+        int before = cardinalities[index];
+        if (bitmaps[index] == null) {
+            toBitmap(index);
+        }
+        long[] words = bitmaps[index];
+        int after = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++, offset += 8) {
+            long word = words[w] | buffer.getLong(offset);
+            words[w] = word;
+            after += Long.bitCount(word);
+        }
+        cardinalities[index] = after;
+        cardinality += after - before;
+    }
+
+    void orRuns(int key, ByteBuffer buffer, int offset, int runCount) {
+        int index = containerIndex(key);
+        int before = cardinalities[index];
+        int incoming = 0;
+        for (int r = 0; r < runCount; r++) {
+            incoming += (buffer.getChar(offset + 4 * r + 2)) + 1;
+        }
+        if (bitmaps[index] == null && before + incoming <= ARRAY_MAX_CARDINALITY) {
+            for (int r = 0; r < runCount; r++, offset += 4) {
+                int start = buffer.getChar(offset);
+                int end = start + buffer.getChar(offset + 2);
+                for (int low = start; low <= end; low++) {
+                    if (addLow(index, (char) low)) {
+                        cardinality++;
+                    }
+                }
+            }
+            return;
+        }
+        if (bitmaps[index] == null) {
+            toBitmap(index);
+        }
+        long[] words = bitmaps[index];
+        for (int r = 0; r < runCount; r++, offset += 4) {
+            int start = buffer.getChar(offset);
+            setRange(words, start, start + buffer.getChar(offset + 2) + 1);
+        }
+        int after = 0;
+        for (long word : words) {
+            after += Long.bitCount(word);
+        }
+        cardinalities[index] = after;
+        cardinality += after - before;
+    }
+
+    private void orContainer(int key, AstraBitmap source, int sourceIndex) {
+        int index = containerIndex(key);
+        long[] sourceWords = source.bitmaps[sourceIndex];
+        if (sourceWords == null) {
+            char[] values = source.arrays[sourceIndex];
+            for (int i = 0; i < source.cardinalities[sourceIndex]; i++) {
+                if (addLow(index, values[i])) {
+                    cardinality++;
+                }
+            }
+            return;
+        }
+        int before = cardinalities[index];
+        if (bitmaps[index] == null) {
+            toBitmap(index);
+        }
+        long[] words = bitmaps[index];
+        int after = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            words[w] |= sourceWords[w];
+            after += Long.bitCount(words[w]);
+        }
+        cardinalities[index] = after;
+        cardinality += after - before;
+    }
+
+    private boolean addLow(int index, char low) {
+        long[] words = bitmaps[index];
+        if (words != null) {
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            words[low >>> 6] |= mask;
+            cardinalities[index]++;
+            return true;
+        }
+        int count = cardinalities[index];
+        char[] values = arrays[index];
+        int at = Arrays.binarySearch(values, 0, count, low);
+        if (at >= 0) {
+            return false;
+        }
+        if (count == ARRAY_MAX_CARDINALITY) {
+            toBitmap(index);
+            return addLow(index, low);
+        }
+        at = -at - 1;
+        if (count == values.length) {
+            values = Arrays.copyOf(values, Math.min(ARRAY_MAX_CARDINALITY, count * 2));
+            sizeInBytes += 2L * (values.length - count);
+            arrays[index] = values;
+        }
+        System.arraycopy(values, at, values, at + 1, count - at);
+        values[at] = low;
+        cardinalities[index] = count + 1;
+        return true;
+    }
+
+    private void toBitmap(int index) {
+        long[] words = new long[BITMAP_WORDS];
+        char[] values = arrays[index];
+        for (int i = 0; i < cardinalities[index]; i++) {
+            words[values[i] >>> 6] |= 1L << values[i];
+        }
+        sizeInBytes += 8L * BITMAP_WORDS - 2L * values.length;
+        bitmaps[index] = words;
+        arrays[index] = null;
+    }
+
+    /**
+     * Finds the container of a key, creating an empty array container when it is missing.
+     */
+    private int containerIndex(int key) {
+        if (lastIndex >= 0 && keys[lastIndex] == key) {
+            return lastIndex;
+        }
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                cardinalities = Arrays.copyOf(cardinalities, capacity);
+                arrays = Arrays.copyOf(arrays, capacity);
+                bitmaps = Arrays.copyOf(bitmaps, capacity);
+                sizeInBytes += (long) (capacity - size) * DIRECTORY_ENTRY;
+            }
+            int tail = size - index;
+            System.arraycopy(keys, index, keys, index + 1, tail);
+            System.arraycopy(cardinalities, index, cardinalities, index + 1, tail);
+            System.arraycopy(arrays, index, arrays, index + 1, tail);
+            System.arraycopy(bitmaps, index, bitmaps, index + 1, tail);
+            keys[index] = key;
+            cardinalities[index] = 0;
+            arrays[index] = new char[INITIAL_ARRAY];
+            bitmaps[index] = null;
+            sizeInBytes += OBJECT_HEADER + 2 * INITIAL_ARRAY;
+            size++;
+        }
+        lastIndex = index;
+        return index;
+    }
+
+    static void setRange(long[] words, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int w = first + 1; w < last; w++) {
+            words[w] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+}
@@ -0,0 +1,656 @@
+package com.etdm.udf;
+
+import com.zaxxer.sparsebits.SparseBitSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Binary layout of the astra_bitset blobs.
+ * <pre>
+ * header, big-endian, {@link #HEADER_SIZE} bytes:
+ *   short magic            'A','S'
+ *   byte  version
+ *   byte  hash function id   MURMUR3_32, MURMUR3_128 or FARMHASH_64
+ *   byte  domain width in bits
+ *   byte  flags            FOLDED, SHARDED
+ *   long  cardinality      distinct count, estimated when FOLDED
+ *   int   container count
+ * shard, SHARDED only:
+ *   short shard bits       the key's high bits that select the shard
+ *   short shard id
+ * container, ordered by key:
+ *   int   key              position >>> 16
+ *   byte  type             ARRAY, BITMAP or RUN
+ *   short cardinality - 1
+ *   ARRAY  payload: cardinality x short, ascending low 16 bits
+ *   BITMAP payload: 1024 x long
+ *   RUN    payload: short run count, run count x (short start, short length - 1)
+ * </pre>
+ * Positions are hashes cut to the domain width, see {@link AstraValueHasher#position}, so only blobs
+ * of the same hash function and width can be matched or merged, see {@link Domain}.
+ * A FOLDED blob holds a bitmap folded to its domain width, see {@link AstraBitmap#fold}.
+ * A SHARDED blob holds only the containers of one hash range, see {@link AstraUDAFShardedBitset}.
+ * It is a complete bitset of that range and decodes like any other blob.
+ * Blobs written by the earlier releases are java-serialized {@link SparseBitSet}s,
+ * they are recognized by the serialization stream magic and are still readable.
+ */
+public final class AstraBitsetCodec {
+    public static final short MAGIC = 0x4153;
+    public static final byte VERSION = 1;
+
+    public static final byte HASH_MURMUR3_32 = 1;
+    public static final byte HASH_MURMUR3_128 = 2;
+    public static final byte HASH_FARMHASH_64 = 3;
+    public static final byte DOMAIN_BITS_31 = 31;
+    public static final byte MAX_DOMAIN_BITS = 40;
+
+    public static final byte FLAG_FOLDED = 1;
+    public static final byte FLAG_SHARDED = 2;
+
+    public static final int HEADER_SIZE = 18;
+    static final int OFFSET_VERSION = 2;
+    static final int OFFSET_HASH = 3;
+    static final int OFFSET_DOMAIN = 4;
+    static final int OFFSET_FLAGS = 5;
+    static final int OFFSET_CARDINALITY = 6;
+    static final int OFFSET_CONTAINER_COUNT = 14;
+    static final int SHARD_SIZE = 4;
+    static final int OFFSET_SHARD_BITS = HEADER_SIZE;
+    static final int OFFSET_SHARD = HEADER_SIZE + 2;
+    static final int MAX_SHARD_BITS = DOMAIN_BITS_31 - 16;
+
+    static final byte CONTAINER_ARRAY = 0;
+    static final byte CONTAINER_BITMAP = 1;
+    static final byte CONTAINER_RUN = 2;
+
+    static final int CONTAINER_BITS = 16;
+    static final int CONTAINER_SIZE = 1 << CONTAINER_BITS;
+    static final int CONTAINER_MASK = CONTAINER_SIZE - 1;
+    static final int BITMAP_WORDS = CONTAINER_SIZE / Long.SIZE;
+    static final int ARRAY_MAX_CARDINALITY = 4096;
+
+    private static final short JAVA_STREAM_MAGIC = (short) 0xACED;
+
+    private AstraBitsetCodec() {
+    }
+
+    public static boolean isLegacy(byte[] bytes, int length) {
+        return isLegacy(bytes, 0, length);
+    }
+
+    public static boolean isLegacy(byte[] bytes, int offset, int length) {
+        return length >= 2 && (short) ((bytes[offset] << 8) | (bytes[offset + 1] & 0xFF)) == JAVA_STREAM_MAGIC;
+    }
+
+    static ByteBuffer open(byte[] bytes, int length) throws IOException {
+        return open(bytes, 0, length);
+    }
+
+    /**
+     * Validates the header and returns a buffer whose index 0 is the first byte of the blob.
+     */
+    static ByteBuffer open(byte[] bytes, int offset, int length) throws IOException {
+        return open(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Blob held in a buffer from its position to its limit, a mapped file for instance.
+     * The returned view is read with absolute gets only, so threads can share it.
+     */
+    public static ByteBuffer open(ByteBuffer blob) throws IOException {
+        if (blob.remaining() < HEADER_SIZE) {
+            throw new IOException("Bitset blob is too short: " + blob.remaining() + " bytes");
+        }
+        ByteBuffer buffer = blob.slice().order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getShort(0) != MAGIC) {
+            throw new IOException("Not a bitset blob, magic " + Integer.toHexString(buffer.getShort(0) & 0xFFFF));
+        }
+        if (buffer.get(OFFSET_VERSION) != VERSION) {
+            throw new IOException("Unsupported bitset blob version " + buffer.get(OFFSET_VERSION));
+        }
+        return buffer;
+    }
+
+    public static boolean isLegacy(ByteBuffer blob) {
+        return blob.remaining() >= 2 && blob.getShort(blob.position()) == JAVA_STREAM_MAGIC;
+    }
+
+    /**
+     * Cardinality of a blob opened with {@link #open(ByteBuffer)}.
+     */
+    public static long cardinality(ByteBuffer buffer) {
+        return buffer.getLong(OFFSET_CARDINALITY);
+    }
+
+    public static boolean isFolded(ByteBuffer buffer) {
+        return (buffer.get(OFFSET_FLAGS) & FLAG_FOLDED) != 0;
+    }
+
+    /**
+     * Domain width of a blob opened with {@link #open(ByteBuffer)}, the fold width of a FOLDED one.
+     */
+    public static int domainBits(ByteBuffer buffer) {
+        return buffer.get(OFFSET_DOMAIN);
+    }
+
+    /**
+     * Offset of the first container, past the shard fields of a SHARDED blob.
+     */
+    static int containersOffset(ByteBuffer buffer) {
+        return (buffer.get(OFFSET_FLAGS) & FLAG_SHARDED) != 0 ? HEADER_SIZE + SHARD_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Shard bits of a SHARDED blob, 0 for a bitset of the whole domain.
+     */
+    public static int shardBits(byte[] bytes, int length) throws IOException {
+        if (isLegacy(bytes, length)) {
+            return 0;
+        }
+        ByteBuffer buffer = open(bytes, length);
+        return containersOffset(buffer) == HEADER_SIZE ? 0 : buffer.getShort(OFFSET_SHARD_BITS);
+    }
+
+    public static int shard(byte[] bytes, int length) throws IOException {
+        if (isLegacy(bytes, length)) {
+            return 0;
+        }
+        ByteBuffer buffer = open(bytes, length);
+        return containersOffset(buffer) == HEADER_SIZE ? 0 : buffer.getShort(OFFSET_SHARD) & 0xFFFF;
+    }
+
+    /**
+     * Shard of a container key: its high shardBits out of the {@link #MAX_SHARD_BITS} key bits.
+     */
+    static int shardOf(int key, int shardBits) {
+        return key >>> (MAX_SHARD_BITS - shardBits);
+    }
+
+    /**
+     * Hash function id of a blob, legacy blobs are murmur3_32.
+     */
+    public static byte hashId(byte[] bytes, int length) throws IOException {
+        return isLegacy(bytes, length) ? HASH_MURMUR3_32 : open(bytes, length).get(OFFSET_HASH);
+    }
+
+    /**
+     * Domain width of a blob, the fold width of a FOLDED one.
+     */
+    public static int domainBits(byte[] bytes, int length) throws IOException {
+        return isLegacy(bytes, length) ? DOMAIN_BITS_31 : open(bytes, length).get(OFFSET_DOMAIN);
+    }
+
+    public static boolean isFolded(byte[] bytes, int length) throws IOException {
+        return !isLegacy(bytes, length) && (open(bytes, length).get(OFFSET_FLAGS) & FLAG_FOLDED) != 0;
+    }
+
+    /**
+     * Rejects two blobs whose positions are not comparable.
+     */
+    public static void checkCompatible(byte[] left, int leftLength, byte[] right, int rightLength) throws IOException {
+        Domain domain = new Domain();
+        domain.check(left, leftLength);
+        domain.check(right, rightLength);
+    }
+
+    public static long cardinality(byte[] bytes) throws IOException {
+        return cardinality(bytes, bytes.length);
+    }
+
+    public static long cardinality(byte[] bytes, int length) throws IOException {
+        if (isLegacy(bytes, length)) {
+            return readLegacy(bytes, length).cardinality();
+        }
+        return open(bytes, length).getLong(OFFSET_CARDINALITY);
+    }
+
+    /**
+     * Decodes a blob of either format into a new bitmap.
+     */
+    public static AstraBitmap toBitmap(byte[] bytes) throws IOException {
+        AstraBitmap bitmap = new AstraBitmap();
+        orInto(bitmap, bytes, bytes.length);
+        return bitmap;
+    }
+
+    /**
+     * ORs a blob into the target container by container: bitmap payloads are OR-ed word by word
+     * and array or run payloads are merged in their sorted order, nothing is decoded in between.
+     * A folded blob folds the target to its width first, the keys of a wider blob are folded
+     * on the way in.
+     */
+    public static void orInto(AstraBitmap target, byte[] bytes, int length) throws IOException {
+        orInto(target, bytes, 0, length);
+    }
+
+    public static void orInto(AstraBitmap target, byte[] bytes, int offset, int length) throws IOException {
+        if (isLegacy(bytes, offset, length)) {
+            SparseBitSet legacy = readLegacy(bytes, offset, length);
+            for (int bit = legacy.nextSetBit(0); bit >= 0; bit = legacy.nextSetBit(bit + 1)) {
+                target.add(bit);
+                if (bit == Integer.MAX_VALUE) {
+                    break;
+                }
+            }
+            return;
+        }
+        orInto(target, open(bytes, offset, length));
+    }
+
+    /**
+     * Same as {@link #orInto(AstraBitmap, byte[], int)} for a blob opened with {@link #open(ByteBuffer)},
+     * read in place. A target folded beforehand takes an exact blob at that width without a full decode.
+     */
+    public static void orInto(AstraBitmap target, ByteBuffer buffer) throws IOException {
+        if ((buffer.get(OFFSET_FLAGS) & FLAG_FOLDED) != 0) {
+            target.fold(buffer.get(OFFSET_DOMAIN));
+        }
+        int keyMask = target.keyMask();
+        int containerCount = buffer.getInt(OFFSET_CONTAINER_COUNT);
+        int offset = containersOffset(buffer);
+        for (int c = 0; c < containerCount; c++) {
+            int key = buffer.getInt(offset) & keyMask;
+            byte type = buffer.get(offset + 4);
+            int cardinality = (buffer.getShort(offset + 5) & 0xFFFF) + 1;
+            offset += 7;
+            switch (type) {
+                case CONTAINER_ARRAY:
+                    target.orArray(key, buffer, offset, cardinality);
+                    offset += 2 * cardinality;
+                    break;
+                case CONTAINER_BITMAP:
+                    target.orBitmap(key, buffer, offset);
+                    offset += 8 * BITMAP_WORDS;
+                    break;
+                case CONTAINER_RUN:
+                    int runCount = buffer.getShort(offset) & 0xFFFF;
+                    target.orRuns(key, buffer, offset + 2, runCount);
+                    offset += 2 + 4 * runCount;
+                    break;
+                default:
+                    throw new IOException("Unknown container type " + type + " at offset " + (offset - 7));
+            }
+        }
+    }
+
+    private static SparseBitSet readLegacy(byte[] bytes, int length) throws IOException {
+        return readLegacy(bytes, 0, length);
+    }
+
+    private static SparseBitSet readLegacy(byte[] bytes, int offset, int length) throws IOException {
+        try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            return (SparseBitSet) is.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Legacy bitset blob", e);
+        }
+    }
+
+    /**
+     * Hash function and domain width of a set of blobs, taken from the first blob and checked on the others.
+     * A folded blob only fixes the hash function: folding keeps the low bits of a position,
+     * which are the same whatever the width of the domain it was folded from.
+     * An empty blob fixes nothing: a final aggregate that got no partials writes the default
+     * murmur3_32 header whatever hash function the query asked for.
+     */
+    public static final class Domain {
+        private byte hashId;
+        private int domainBits;
+
+        public void reset() {
+            hashId = 0;
+            domainBits = 0;
+        }
+
+        /**
+         * Hash function id, 0 until one is known.
+         */
+        public byte hashId() {
+            return hashId;
+        }
+
+        /**
+         * Width of the unfolded domain, 0 until one is known.
+         */
+        public int domainBits() {
+            return domainBits;
+        }
+
+        /**
+         * Same as {@link #check(byte[], int)} for a blob opened with {@link #open(ByteBuffer)}.
+         */
+        public void check(ByteBuffer buffer) throws IOException {
+            if (cardinality(buffer) == 0) {
+                return;
+            }
+            check(buffer.get(OFFSET_HASH), isFolded(buffer) ? 0 : buffer.get(OFFSET_DOMAIN));
+        }
+
+        public void check(byte[] bytes, int length) throws IOException {
+            if (!isLegacy(bytes, length) && open(bytes, length).getLong(OFFSET_CARDINALITY) == 0) {
+                return;
+            }
+            check(AstraBitsetCodec.hashId(bytes, length), isFolded(bytes, length) ? 0 : AstraBitsetCodec.domainBits(bytes, length));
+        }
+
+        /**
+         * @param domainBits width of the positions, 0 for a folded bitmap
+         */
+        public void check(byte hashId, int domainBits) throws IOException {
+            if (this.hashId == 0) {
+                this.hashId = hashId;
+            } else if (this.hashId != hashId) {
+                throw new IOException("Bitsets of hash functions " + this.hashId + " and " + hashId);
+            }
+            if (this.domainBits == 0) {
+                this.domainBits = domainBits;
+            } else if (domainBits != 0 && this.domainBits != domainBits) {
+                throw new IOException("Bitsets of " + this.domainBits + " and " + domainBits + " bit domains");
+            }
+        }
+    }
+
+    /**
+     * Intersection size of two blobs read in place: the container lists are merge-joined by key
+     * and only the payloads of the keys both sides hold are read, nothing is decoded into a bitmap.
+     * Run containers are expanded into scratch words, so an instance belongs to one thread.
+     */
+    public static final class Intersector {
+        private final long[] leftWords = new long[BITMAP_WORDS];
+        private final long[] rightWords = new long[BITMAP_WORDS];
+
+        /**
+         * @param left  unfolded blob opened with {@link #open(ByteBuffer)}
+         * @param right unfolded blob of the same hash function and domain
+         */
+        public long andCardinality(ByteBuffer left, ByteBuffer right) throws IOException {
+            if (isFolded(left) || isFolded(right)) {
+                throw new IOException("Folded bitsets are estimated, decode them with toBitmap");
+            }
+            int leftCount = left.getInt(OFFSET_CONTAINER_COUNT);
+            int rightCount = right.getInt(OFFSET_CONTAINER_COUNT);
+            int leftOffset = containersOffset(left);
+            int rightOffset = containersOffset(right);
+            long matched = 0;
+            int i = 0;
+            int j = 0;
+            while (i < leftCount && j < rightCount) {
+                int leftKey = left.getInt(leftOffset);
+                int rightKey = right.getInt(rightOffset);
+                if (leftKey < rightKey) {
+                    leftOffset = nextContainer(left, leftOffset);
+                    i++;
+                } else if (leftKey > rightKey) {
+                    rightOffset = nextContainer(right, rightOffset);
+                    j++;
+                } else {
+                    if (left.get(leftOffset + 4) <= right.get(rightOffset + 4)) {
+                        matched += andContainers(left, leftOffset, right, rightOffset);
+                    } else {
+                        matched += andContainers(right, rightOffset, left, leftOffset);
+                    }
+                    leftOffset = nextContainer(left, leftOffset);
+                    rightOffset = nextContainer(right, rightOffset);
+                    i++;
+                    j++;
+                }
+            }
+            return matched;
+        }
+
+        /**
+         * Containers of the same key, a's type ordered before b's: ARRAY, BITMAP, RUN.
+         */
+        private int andContainers(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset) {
+            byte aType = a.get(aOffset + 4);
+            byte bType = b.get(bOffset + 4);
+            int aCount = (a.getShort(aOffset + 5) & 0xFFFF) + 1;
+            int bCount = (b.getShort(bOffset + 5) & 0xFFFF) + 1;
+            aOffset += 7;
+            bOffset += 7;
+            if (aType == CONTAINER_ARRAY && bType == CONTAINER_ARRAY) {
+                int matched = 0;
+                int i = 0;
+                int j = 0;
+                while (i < aCount && j < bCount) {
+                    char x = a.getChar(aOffset + 2 * i);
+                    char y = b.getChar(bOffset + 2 * j);
+                    if (x < y) {
+                        i++;
+                    } else if (x > y) {
+                        j++;
+                    } else {
+                        matched++;
+                        i++;
+                        j++;
+                    }
+                }
+                return matched;
+            }
+            if (aType == CONTAINER_ARRAY) {
+                int matched = 0;
+                if (bType == CONTAINER_BITMAP) {
+                    for (int i = 0; i < aCount; i++) {
+                        int low = a.getChar(aOffset + 2 * i);
+                        matched += (int) (b.getLong(bOffset + 8 * (low >>> 6)) >>> low) & 1;
+                    }
+                } else {
+                    long[] words = runs(b, bOffset, rightWords);
+                    for (int i = 0; i < aCount; i++) {
+                        int low = a.getChar(aOffset + 2 * i);
+                        matched += (int) (words[low >>> 6] >>> low) & 1;
+                    }
+                }
+                return matched;
+            }
+            int matched = 0;
+            if (aType == CONTAINER_BITMAP && bType == CONTAINER_BITMAP) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    matched += Long.bitCount(a.getLong(aOffset + 8 * w) & b.getLong(bOffset + 8 * w));
+                }
+            } else if (aType == CONTAINER_BITMAP) {
+                long[] words = runs(b, bOffset, rightWords);
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    matched += Long.bitCount(a.getLong(aOffset + 8 * w) & words[w]);
+                }
+            } else {
+                long[] aWords = runs(a, aOffset, leftWords);
+                long[] bWords = runs(b, bOffset, rightWords);
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    matched += Long.bitCount(aWords[w] & bWords[w]);
+                }
+            }
+            return matched;
+        }
+
+        private static long[] runs(ByteBuffer buffer, int offset, long[] words) {
+            Arrays.fill(words, 0);
+            int runCount = buffer.getShort(offset) & 0xFFFF;
+            for (int r = 0, at = offset + 2; r < runCount; r++, at += 4) {
+                int start = buffer.getChar(at);
+                AstraBitmap.setRange(words, start, start + buffer.getChar(at + 2) + 1);
+            }
+            return words;
+        }
+
+        private static int nextContainer(ByteBuffer buffer, int offset) throws IOException {
+            byte type = buffer.get(offset + 4);
+            switch (type) {
+                case CONTAINER_ARRAY:
+                    return offset + 7 + 2 * ((buffer.getShort(offset + 5) & 0xFFFF) + 1);
+                case CONTAINER_BITMAP:
+                    return offset + 7 + 8 * BITMAP_WORDS;
+                case CONTAINER_RUN:
+                    return offset + 9 + 4 * (buffer.getShort(offset + 7) & 0xFFFF);
+                default:
+                    throw new IOException("Unknown container type " + type + " at offset " + offset);
+            }
+        }
+    }
+
+    /**
+     * Reusable encoder, one instance per evaluator.
+     */
+    public static final class Writer {
+        private byte[] bytes = new byte[1024];
+        private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        private int length;
+
+        public byte[] write(AstraBitmap bitmap, byte hashId, byte domainBits) {
+            return write(bitmap, hashId, domainBits, 0, bitmap.containerCount(), 0, 0);
+        }
+
+        /**
+         * Containers [from, to) of the bitmap as one blob, a SHARDED one when shardBits is not 0.
+         */
+        byte[] write(AstraBitmap bitmap, byte hashId, byte domainBits, int from, int to, int shardBits, int shard) {
+            boolean sharded = shardBits != 0;
+            if (sharded && bitmap.isFolded()) {
+                throw new IllegalArgumentException("A folded bitmap cannot be sharded");
+            }
+            length = sharded ? HEADER_SIZE + SHARD_SIZE : HEADER_SIZE;
+            long cardinality = 0;
+            for (int i = from; i < to; i++) {
+                if (bitmap.array(i) != null) {
+                    writeArrayContainer(bitmap.key(i), bitmap.array(i), bitmap.cardinality(i));
+                } else {
+                    writeBitmapContainer(bitmap.key(i), bitmap.bitmap(i), bitmap.cardinality(i));
+                }
+                cardinality += bitmap.cardinality(i);
+            }
+            buffer.putShort(0, MAGIC);
+            buffer.put(OFFSET_VERSION, VERSION);
+            buffer.put(OFFSET_HASH, hashId);
+            buffer.put(OFFSET_DOMAIN, bitmap.isFolded() ? (byte) bitmap.foldBits() : domainBits);
+            buffer.put(OFFSET_FLAGS, (byte) ((bitmap.isFolded() ? FLAG_FOLDED : 0) | (sharded ? FLAG_SHARDED : 0)));
+            buffer.putLong(OFFSET_CARDINALITY, bitmap.isFolded() ? bitmap.distinctCount() : cardinality);
+            buffer.putInt(OFFSET_CONTAINER_COUNT, to - from);
+            if (sharded) {
+                buffer.putShort(OFFSET_SHARD_BITS, (short) shardBits);
+                buffer.putShort(OFFSET_SHARD, (short) shard);
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+
+        /**
+         * An array container is stored as runs when that is smaller.
+         */
+        private void writeArrayContainer(int key, char[] values, int count) {
+            int runCount = 1;
+            for (int i = 1; i < count; i++) {
+                if (values[i] != values[i - 1] + 1) {
+                    runCount++;
+                }
+            }
+            int runSize = 2 + 4 * runCount;
+            if (runSize < 2 * count) {
+                writeContainerHeader(key, CONTAINER_RUN, count, runSize);
+                buffer.putShort(length, (short) runCount);
+                length += 2;
+                int start = values[0];
+                for (int i = 1; i <= count; i++) {
+                    if (i == count || values[i] != values[i - 1] + 1) {
+                        putRun(start, values[i - 1]);
+                        if (i < count) {
+                            start = values[i];
+                        }
+                    }
+                }
+            } else {
+                writeContainerHeader(key, CONTAINER_ARRAY, count, 2 * count);
+                for (int i = 0; i < count; i++, length += 2) {
+                    buffer.putChar(length, values[i]);
+                }
+            }
+        }
+
+        /**
+         * A bitmap container is stored as runs or as an array when either is smaller.
+         */
+        private void writeBitmapContainer(int key, long[] words, int count) {
+            int runCount = 0;
+            long carry = 0;
+            for (long word : words) {
+                runCount += Long.bitCount(word & ~((word << 1) | carry));
+                carry = word >>> 63;
+            }
+            int runSize = 2 + 4 * runCount;
+            int arraySize = 2 * count;
+            int bitmapSize = 8 * BITMAP_WORDS;
+            if (runSize < arraySize && runSize < bitmapSize) {
+                writeContainerHeader(key, CONTAINER_RUN, count, runSize);
+                buffer.putShort(length, (short) runCount);
+                length += 2;
+                for (int start = nextSetBit(words, 0); start >= 0; ) {
+                    int end = nextClearBit(words, start);
+                    putRun(start, end - 1);
+                    start = end < CONTAINER_SIZE ? nextSetBit(words, end) : -1;
+                }
+            } else if (count <= ARRAY_MAX_CARDINALITY && arraySize <= bitmapSize) {
+                writeContainerHeader(key, CONTAINER_ARRAY, count, arraySize);
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        buffer.putChar(length, (char) ((w << 6) | Long.numberOfTrailingZeros(word)));
+                        length += 2;
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                writeContainerHeader(key, CONTAINER_BITMAP, count, bitmapSize);
+                for (int w = 0; w < BITMAP_WORDS; w++, length += 8) {
+                    buffer.putLong(length, words[w]);
+                }
+            }
+        }
+
+        private void writeContainerHeader(int key, byte type, int count, int payloadSize) {
+            ensureCapacity(7 + payloadSize);
+            buffer.putInt(length, key);
+            buffer.put(length + 4, type);
+            buffer.putShort(length + 5, (short) (count - 1));
+            length += 7;
+        }
+
+        private void putRun(int first, int last) {
+            buffer.putShort(length, (short) first);
+            buffer.putShort(length + 2, (short) (last - first));
+            length += 4;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+                buffer = ByteBuffer.wrap(bytes);
+            }
+        }
+    }
+
+    static int nextSetBit(long[] words, int from) {
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+        return (w << 6) | Long.numberOfTrailingZeros(word);
+    }
+
+    static int nextClearBit(long[] words, int from) {
+        int w = from >>> 6;
+        long word = ~words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return words.length << 6;
+            }
+            word = ~words[w];
+        }
+        return (w << 6) | Long.numberOfTrailingZeros(word);
+    }
+}
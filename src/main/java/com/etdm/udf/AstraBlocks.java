@@ -0,0 +1,156 @@
+package com.etdm.udf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.etdm.udf.AstraBitsetCodec.CONTAINER_ARRAY;
+import static com.etdm.udf.AstraBitsetCodec.CONTAINER_BITMAP;
+import static com.etdm.udf.AstraBitsetCodec.CONTAINER_BITS;
+
+/**
+ * Posting blocks of a bitset: 4096-bit slices of the position domain, block id {@code position >>> 12}.
+ * <pre>
+ * payload, big-endian:
+ *   byte  hash id          of the bitset, as in its header
+ *   byte  domain bits      of the bitset, as in its header
+ *   byte  type             ARRAY or BITMAP
+ *   ARRAY  cardinality x short, ascending low 12 bits
+ *   BITMAP 64 x long
+ * </pre>
+ * A block is stored as an array while that is smaller than its bitmap. Blocks of bitsets hashed
+ * into different domains are not comparable, {@link #checkCompatible} rejects them.
+ */
+public final class AstraBlocks {
+    public static final int BLOCK_BITS = 12;
+    static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    static final int BLOCK_WORDS = BLOCK_SIZE / Long.SIZE;
+    static final int BLOCKS_PER_CONTAINER = 1 << (CONTAINER_BITS - BLOCK_BITS);
+    static final int ARRAY_MAX_CARDINALITY = BLOCK_WORDS * 8 / 2;
+    static final int OFFSET_HASH = 0;
+    static final int OFFSET_DOMAIN = 1;
+    static final int OFFSET_TYPE = 2;
+    static final int HEADER_SIZE = 3;
+    static final int BITMAP_PAYLOAD_SIZE = HEADER_SIZE + 8 * BLOCK_WORDS;
+
+    private AstraBlocks() {
+    }
+
+    static int blockId(int key, int block) {
+        return key << (CONTAINER_BITS - BLOCK_BITS) | block;
+    }
+
+    /**
+     * Payload of the array values [from, to), all within one block.
+     */
+    static byte[] arrayPayload(byte hashId, byte domainBits, char[] values, int from, int to) {
+        byte[] payload = new byte[HEADER_SIZE + 2 * (to - from)];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        header(buffer, hashId, domainBits, CONTAINER_ARRAY);
+        for (int i = from, offset = HEADER_SIZE; i < to; i++, offset += 2) {
+            buffer.putChar(offset, (char) (values[i] & BLOCK_MASK));
+        }
+        return payload;
+    }
+
+    /**
+     * Payload of the block that starts at word {@code from} of a bitmap container.
+     */
+    static byte[] bitmapPayload(byte hashId, byte domainBits, long[] words, int from, int cardinality) {
+        ByteBuffer buffer;
+        if (cardinality <= ARRAY_MAX_CARDINALITY) {
+            buffer = ByteBuffer.allocate(HEADER_SIZE + 2 * cardinality);
+            header(buffer, hashId, domainBits, CONTAINER_ARRAY);
+            int offset = HEADER_SIZE;
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                long word = words[from + w];
+                while (word != 0) {
+                    buffer.putChar(offset, (char) ((w << 6) | Long.numberOfTrailingZeros(word)));
+                    offset += 2;
+                    word &= word - 1;
+                }
+            }
+        } else {
+            buffer = ByteBuffer.allocate(BITMAP_PAYLOAD_SIZE);
+            header(buffer, hashId, domainBits, CONTAINER_BITMAP);
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                buffer.putLong(HEADER_SIZE + 8 * w, words[from + w]);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void header(ByteBuffer buffer, byte hashId, byte domainBits, byte type) {
+        buffer.put(OFFSET_HASH, hashId);
+        buffer.put(OFFSET_DOMAIN, domainBits);
+        buffer.put(OFFSET_TYPE, type);
+    }
+
+    static int cardinality(byte[] payload, int length) {
+        if (payload[OFFSET_TYPE] == CONTAINER_ARRAY) {
+            return (length - HEADER_SIZE) / 2;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+        int cardinality = 0;
+        for (int w = 0; w < BLOCK_WORDS; w++) {
+            cardinality += Long.bitCount(buffer.getLong(HEADER_SIZE + 8 * w));
+        }
+        return cardinality;
+    }
+
+    /**
+     * Rejects blocks of bitsets of different hash functions or domain widths.
+     */
+    public static void checkCompatible(byte[] left, int leftLength, byte[] right, int rightLength) throws IOException {
+        if (leftLength < HEADER_SIZE || rightLength < HEADER_SIZE) {
+            throw new IOException("Posting block too short");
+        }
+        if (left[OFFSET_HASH] != right[OFFSET_HASH]) {
+            throw new IOException("Posting blocks of hash functions " + left[OFFSET_HASH] + " and " + right[OFFSET_HASH]);
+        }
+        if (left[OFFSET_DOMAIN] != right[OFFSET_DOMAIN]) {
+            throw new IOException("Posting blocks of " + left[OFFSET_DOMAIN] + " and " + right[OFFSET_DOMAIN] + " bit domains");
+        }
+    }
+
+    /**
+     * AND + popcount of two block payloads.
+     */
+    public static int andCardinality(byte[] left, int leftLength, byte[] right, int rightLength) {
+        ByteBuffer a = ByteBuffer.wrap(left, 0, leftLength);
+        ByteBuffer b = ByteBuffer.wrap(right, 0, rightLength);
+        boolean leftBitmap = left[OFFSET_TYPE] == CONTAINER_BITMAP;
+        boolean rightBitmap = right[OFFSET_TYPE] == CONTAINER_BITMAP;
+        int matched = 0;
+        if (leftBitmap && rightBitmap) {
+            for (int offset = HEADER_SIZE; offset < BITMAP_PAYLOAD_SIZE; offset += 8) {
+                matched += Long.bitCount(a.getLong(offset) & b.getLong(offset));
+            }
+        } else if (leftBitmap || rightBitmap) {
+            ByteBuffer bitmap = leftBitmap ? a : b;
+            ByteBuffer array = leftBitmap ? b : a;
+            int end = leftBitmap ? rightLength : leftLength;
+            for (int offset = HEADER_SIZE; offset < end; offset += 2) {
+                int low = array.getChar(offset);
+                matched += (int) (bitmap.getLong(HEADER_SIZE + 8 * (low >>> 6)) >>> low) & 1;
+            }
+        } else {
+            int i = HEADER_SIZE;
+            int j = HEADER_SIZE;
+            while (i < leftLength && j < rightLength) {
+                char x = a.getChar(i);
+                char y = b.getChar(j);
+                if (x < y) {
+                    i += 2;
+                } else if (x > y) {
+                    j += 2;
+                } else {
+                    matched++;
+                    i += 2;
+                    j += 2;
+                }
+            }
+        }
+        return matched;
+    }
+}
@@ -0,0 +1,219 @@
+package com.etdm.udf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bottom-k MinHash signature: the k smallest distinct 64-bit canonical value hashes of a column.
+ * A column with fewer than k distinct values keeps all of them and its overlaps are exact.
+ * <pre>
+ * blob, big-endian:
+ *   short magic            'A','K'
+ *   byte  version
+ *   byte  hash function id
+ *   int   k
+ *   int   count
+ *   count x long           hashes, ascending as signed longs
+ * </pre>
+ */
+public final class AstraBottomK {
+    public static final short MAGIC = 0x414B;
+    public static final byte VERSION = 1;
+    public static final int DEFAULT_K = 1024;
+    static final int MIN_K = 16;
+    static final int MAX_K = 1 << 16;
+
+    static final int HEADER_SIZE = 12;
+    static final int OFFSET_VERSION = 2;
+    static final int OFFSET_HASH = 3;
+    static final int OFFSET_K = 4;
+    static final int OFFSET_COUNT = 8;
+
+    private static final double DOMAIN = 0x1p64;
+
+    private final byte hashId;
+    private int k;
+    /**
+     * Sorted distinct hashes in [0, sorted), appended ones after that until the next compaction.
+     */
+    private long[] values;
+    private int sorted;
+    private int count;
+
+    public AstraBottomK(byte hashId, int k) {
+        if (k < MIN_K || k > MAX_K) {
+            throw new IllegalArgumentException("k must be within " + MIN_K + ".." + MAX_K + ": " + k);
+        }
+        this.hashId = hashId;
+        this.k = k;
+        this.values = new long[2 * k];
+    }
+
+    public byte hashId() {
+        return hashId;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    /**
+     * Hashes at or above the k-th smallest one seen so far are dropped right away,
+     * the rest are buffered and compacted once the buffer fills up.
+     */
+    public void add(long hash) {
+        if (sorted == k && hash >= values[k - 1]) {
+            return;
+        }
+        if (count == values.length) {
+            compact();
+            if (sorted == k && hash >= values[k - 1]) {
+                return;
+            }
+        }
+        values[count++] = hash;
+    }
+
+    /**
+     * Union of the two signatures, truncated to the smaller k.
+     */
+    public void merge(AstraBottomK other) throws IOException {
+        if (other.hashId != hashId) {
+            throw new IOException("Cannot merge sketches of hash functions " + hashId + " and " + other.hashId);
+        }
+        other.compact();
+        if (other.k < k) {
+            compact();
+            k = other.k;
+            sorted = Math.min(sorted, k);
+            count = sorted;
+        }
+        for (int i = 0; i < other.count; i++) {
+            add(other.values[i]);
+        }
+    }
+
+    private void compact() {
+        if (sorted == count) {
+            return;
+        }
+        Arrays.sort(values, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count && distinct < k; i++) {
+            if (distinct == 0 || values[i] != values[distinct - 1]) {
+                values[distinct++] = values[i];
+            }
+        }
+        sorted = distinct;
+        count = distinct;
+    }
+
+    /**
+     * True when fewer than k distinct hashes were seen, the signature then holds the whole column.
+     */
+    public boolean isExact() {
+        compact();
+        return count < k;
+    }
+
+    public double estimate() {
+        compact();
+        return count < k ? count : estimate(k, values[k - 1]);
+    }
+
+    /**
+     * Distinct count of a set whose k-th smallest hash is kth, (k - 1) / U(kth).
+     */
+    static double estimate(int k, long kth) {
+        return (k - 1) / ((kth + 0x1p63) / DOMAIN);
+    }
+
+    int count() {
+        compact();
+        return count;
+    }
+
+    long value(int index) {
+        return values[index];
+    }
+
+    public long sizeInBytes() {
+        return 16 + 8 + 3 * 4 + 16 + 8L * values.length;
+    }
+
+    public byte[] toBytes() {
+        compact();
+        byte[] bytes = new byte[HEADER_SIZE + 8 * count];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putShort(0, MAGIC);
+        buffer.put(OFFSET_VERSION, VERSION);
+        buffer.put(OFFSET_HASH, hashId);
+        buffer.putInt(OFFSET_K, k);
+        buffer.putInt(OFFSET_COUNT, count);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(HEADER_SIZE + 8 * i, values[i]);
+        }
+        return bytes;
+    }
+
+    public static boolean isSketch(byte[] bytes, int length) {
+        return length >= 2 && (short) ((bytes[0] << 8) | (bytes[1] & 0xFF)) == MAGIC;
+    }
+
+    public static AstraBottomK fromBytes(byte[] bytes, int length) throws IOException {
+        if (length < HEADER_SIZE || !isSketch(bytes, length)) {
+            throw new IOException("Not a bottom-k sketch");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        if (buffer.get(OFFSET_VERSION) != VERSION) {
+            throw new IOException("Unsupported bottom-k sketch version " + buffer.get(OFFSET_VERSION));
+        }
+        int k = buffer.getInt(OFFSET_K);
+        int count = buffer.getInt(OFFSET_COUNT);
+        if (k < MIN_K || k > MAX_K || count < 0 || count > k || length != HEADER_SIZE + 8 * count) {
+            throw new IOException("Corrupt bottom-k sketch, k " + k + ", count " + count + ", " + length + " bytes");
+        }
+        AstraBottomK sketch = new AstraBottomK(buffer.get(OFFSET_HASH), k);
+        for (int i = 0; i < count; i++) {
+            sketch.values[i] = buffer.getLong(HEADER_SIZE + 8 * i);
+        }
+        sketch.sorted = count;
+        sketch.count = count;
+        return sketch;
+    }
+
+    /**
+     * Intersection size of the two columns. Exact when both signatures are, otherwise the Jaccard
+     * similarity is the share of the k smallest hashes of the union held by both sides,
+     * scaled by the union size estimated from the k-th of them.
+     */
+    public static double estimateIntersection(AstraBottomK left, AstraBottomK right) {
+        left.compact();
+        right.compact();
+        boolean exact = left.count < left.k && right.count < right.k;
+        int k = Math.min(left.k, right.k);
+        int limit = exact ? left.count + right.count : k;
+        int i = 0;
+        int j = 0;
+        int union = 0;
+        int shared = 0;
+        long last = 0;
+        while (union < limit && (i < left.count || j < right.count)) {
+            if (j == right.count || i < left.count && left.values[i] < right.values[j]) {
+                last = left.values[i++];
+            } else if (i == left.count || right.values[j] < left.values[i]) {
+                last = right.values[j++];
+            } else {
+                last = left.values[i++];
+                j++;
+                shared++;
+            }
+            union++;
+        }
+        if (exact || union < k) {
+            return shared;
+        }
+        return (double) shared / union * estimate(k, last);
+    }
+}
@@ -0,0 +1,223 @@
+package com.etdm.udf;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.serde2.io.DateWritable;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.hadoop.hive.serde2.io.TimestampWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.*;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Hash and bit position of a column value. One subclass per primitive category, picked once
+ * from the column's ObjectInspector so the per-row path has no type dispatch.
+ */
+abstract class AstraColumnHasher {
+    static final int NULL_POSITION = -1;
+
+    final AstraValueHasher hasher;
+    /**
+     * Hash of the last value {@link #hash(Object)} accepted.
+     */
+    long hash;
+
+    AstraColumnHasher(AstraValueHasher hasher) {
+        this.hasher = hasher;
+    }
+
+    /**
+     * Hashes the value into {@link #hash}, false for a null.
+     */
+    abstract boolean hash(Object value);
+
+    /**
+     * Bit position of the value, {@link #NULL_POSITION} for a null.
+     */
+    final long position(Object value) {
+        return hash(value) ? hasher.position(hash) : NULL_POSITION;
+    }
+
+    static AstraColumnHasher of(int paramIndex, PrimitiveObjectInspector inputOI, AstraValueHasher hasher)
+            throws UDFArgumentTypeException {
+        switch (inputOI.getPrimitiveCategory()) {
+            case BOOLEAN: {
+                final BooleanObjectInspector oi = (BooleanObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashBoolean(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case BYTE: {
+                final ByteObjectInspector oi = (ByteObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashLong(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case SHORT: {
+                final ShortObjectInspector oi = (ShortObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashLong(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case INT: {
+                final IntObjectInspector oi = (IntObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashLong(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case LONG: {
+                final LongObjectInspector oi = (LongObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashLong(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case FLOAT: {
+                final FloatObjectInspector oi = (FloatObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashFloat(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case DOUBLE: {
+                final DoubleObjectInspector oi = (DoubleObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashDouble(oi.get(value));
+                        return true;
+                    }
+                };
+            }
+            case DECIMAL: {
+                final HiveDecimalObjectInspector oi = (HiveDecimalObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        HiveDecimalWritable writable = value == null ? null : oi.getPrimitiveWritableObject(value);
+                        if (writable == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashDecimal(writable);
+                        return true;
+                    }
+                };
+            }
+            case DATE: {
+                final DateObjectInspector oi = (DateObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        DateWritable writable = value == null ? null : oi.getPrimitiveWritableObject(value);
+                        if (writable == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashDate(writable.getDays());
+                        return true;
+                    }
+                };
+            }
+            case TIMESTAMP: {
+                final TimestampObjectInspector oi = (TimestampObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        TimestampWritable writable = value == null ? null : oi.getPrimitiveWritableObject(value);
+                        if (writable == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashTimestamp(writable.getSeconds(), writable.getNanos());
+                        return true;
+                    }
+                };
+            }
+            case CHAR: {
+                final HiveCharObjectInspector oi = (HiveCharObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        Text text = oi.getPrimitiveWritableObject(value).getTextValue();
+                        hash = this.hasher.hashUtf8Stripped(text.getBytes(), 0, text.getLength());
+                        return true;
+                    }
+                };
+            }
+            case VARCHAR: {
+                final HiveVarcharObjectInspector oi = (HiveVarcharObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        if (value == null) {
+                            return false;
+                        }
+                        Text text = oi.getPrimitiveWritableObject(value).getTextValue();
+                        hash = this.hasher.hashUtf8(text.getBytes(), 0, text.getLength());
+                        return true;
+                    }
+                };
+            }
+            case STRING: {
+                final StringObjectInspector oi = (StringObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        Text text = value == null ? null : oi.getPrimitiveWritableObject(value);
+                        if (text == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashUtf8(text.getBytes(), 0, text.getLength());
+                        return true;
+                    }
+                };
+            }
+            case BINARY: {
+                final BinaryObjectInspector oi = (BinaryObjectInspector) inputOI;
+                return new AstraColumnHasher(hasher) {
+                    boolean hash(Object value) {
+                        BytesWritable bytes = value == null ? null : oi.getPrimitiveWritableObject(value);
+                        if (bytes == null) {
+                            return false;
+                        }
+                        hash = this.hasher.hashBinary(bytes.getBytes(), 0, bytes.getLength());
+                        return true;
+                    }
+                };
+            }
+            default:
+                throw new UDFArgumentTypeException(paramIndex, "Bad primitive category " + inputOI.getPrimitiveCategory());
+        }
+    }
+}
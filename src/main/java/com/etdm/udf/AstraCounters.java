@@ -0,0 +1,91 @@
+package com.etdm.udf;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.util.Arrays;
+
+/**
+ * Task counters of an evaluator or a UDTF. An instance runs on one task thread, so the counts
+ * are plain longs bumped in place and handed to the task's Reporter once, at close().
+ */
+final class AstraCounters {
+
+    enum Counter {
+        ROWS_HASHED,
+        NULLS_SKIPPED,
+        BITS_SET,
+        BLOB_BYTES_IN,
+        BLOB_BYTES_OUT,
+        SERIALIZE_NANOS,
+        DESERIALIZE_NANOS,
+        PAIRS_EVALUATED,
+        PROFILE_PRUNED_PAIRS,
+        PAIRS_EMITTED,
+        INCOMPATIBLE_PAIRS,
+        CORRUPT_BLOBS
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private final String group;
+    private final long[] values = new long[COUNTERS.length];
+    private String type = null;
+
+    AstraCounters(String group) {
+        this.group = group;
+    }
+
+    /**
+     * Column type of the hashed rows, ROWS_HASHED is published as ROWS_HASHED_&lt;TYPE&gt;.
+     */
+    void setType(PrimitiveObjectInspector.PrimitiveCategory category) {
+        type = category.name();
+    }
+
+    void increment(Counter counter) {
+        values[counter.ordinal()]++;
+    }
+
+    void add(Counter counter, long amount) {
+        values[counter.ordinal()] += amount;
+    }
+
+    long get(Counter counter) {
+        return values[counter.ordinal()];
+    }
+
+    private String name(Counter counter) {
+        return counter == Counter.ROWS_HASHED && type != null ? counter.name() + "_" + type : counter.name();
+    }
+
+    /**
+     * Adds the counts to the task's counters and starts over. Without a Reporter, as in a local
+     * fetch task, the counts are only logged by the caller.
+     */
+    void flush(MapredContext mapredContext) {
+        Reporter reporter = mapredContext != null ? mapredContext.getReporter() : null;
+        if (reporter != null) {
+            for (Counter counter : COUNTERS) {
+                if (values[counter.ordinal()] != 0) {
+                    reporter.incrCounter(group, name(counter), values[counter.ordinal()]);
+                }
+            }
+        }
+        Arrays.fill(values, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(group).append(" {");
+        String separator = "";
+        for (Counter counter : COUNTERS) {
+            if (values[counter.ordinal()] != 0) {
+                builder.append(separator).append(name(counter)).append('=').append(values[counter.ordinal()]);
+                separator = ", ";
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,178 @@
+package com.etdm.udf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Dense HyperLogLog over the 64-bit canonical value hashes, 2^precision one-byte registers.
+ * <pre>
+ * blob, big-endian:
+ *   short magic            'A','H'
+ *   byte  version
+ *   byte  hash function id
+ *   byte  precision
+ *   2^precision x byte     registers
+ * </pre>
+ * Sketches of different precision merge by folding the wider one down.
+ */
+public final class AstraHyperLogLog {
+    public static final short MAGIC = 0x4148;
+    public static final byte VERSION = 1;
+    public static final int DEFAULT_PRECISION = 14;
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 18;
+
+    static final int HEADER_SIZE = 5;
+    static final int OFFSET_VERSION = 2;
+    static final int OFFSET_HASH = 3;
+    static final int OFFSET_PRECISION = 4;
+
+    private final byte hashId;
+    private int precision;
+    private byte[] registers;
+
+    public AstraHyperLogLog(byte hashId, int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be within " + MIN_PRECISION + ".." + MAX_PRECISION + ": " + precision);
+        }
+        this.hashId = hashId;
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    private AstraHyperLogLog(byte hashId, int precision, byte[] registers) {
+        this.hashId = hashId;
+        this.precision = precision;
+        this.registers = registers;
+    }
+
+    public byte hashId() {
+        return hashId;
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Register-wise max. The result has the smaller of the two precisions.
+     */
+    public void merge(AstraHyperLogLog other) throws IOException {
+        if (other.hashId != hashId) {
+            throw new IOException("Cannot merge sketches of hash functions " + hashId + " and " + other.hashId);
+        }
+        if (other.precision < precision) {
+            registers = fold(registers, precision, other.precision);
+            precision = other.precision;
+        }
+        byte[] incoming = other.precision == precision ? other.registers : fold(other.registers, other.precision, precision);
+        for (int i = 0; i < registers.length; i++) {
+            if (incoming[i] > registers[i]) {
+                registers[i] = incoming[i];
+            }
+        }
+    }
+
+    /**
+     * Registers of a narrower sketch: the hash bits that drop out of the index become
+     * the leading bits of the rank.
+     */
+    private static byte[] fold(byte[] registers, int from, int to) {
+        int shift = from - to;
+        byte[] folded = new byte[1 << to];
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] == 0) {
+                continue;
+            }
+            int dropped = i & ((1 << shift) - 1);
+            int rank = dropped != 0
+                    ? Integer.numberOfLeadingZeros(dropped) - (Integer.SIZE - shift) + 1
+                    : shift + registers[i];
+            int index = i >>> shift;
+            if (rank > folded[index]) {
+                folded[index] = (byte) rank;
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * Estimated distinct count, linear counting while registers are still empty.
+     * The hashes are 64 bits wide so there is no large range correction.
+     */
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += Double.longBitsToDouble((1023L - register) << 52);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            return m * Math.log((double) m / zeros);
+        }
+        return estimate;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    public AstraHyperLogLog copy() {
+        return new AstraHyperLogLog(hashId, precision, registers.clone());
+    }
+
+    public long sizeInBytes() {
+        return 16 + 8 + 16 + registers.length;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[HEADER_SIZE + registers.length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putShort(0, MAGIC);
+        buffer.put(OFFSET_VERSION, VERSION);
+        buffer.put(OFFSET_HASH, hashId);
+        buffer.put(OFFSET_PRECISION, (byte) precision);
+        System.arraycopy(registers, 0, bytes, HEADER_SIZE, registers.length);
+        return bytes;
+    }
+
+    public static boolean isSketch(byte[] bytes, int length) {
+        return length >= 2 && (short) ((bytes[0] << 8) | (bytes[1] & 0xFF)) == MAGIC;
+    }
+
+    public static AstraHyperLogLog fromBytes(byte[] bytes, int length) throws IOException {
+        if (length < HEADER_SIZE || !isSketch(bytes, length)) {
+            throw new IOException("Not a HyperLogLog sketch");
+        }
+        if (bytes[OFFSET_VERSION] != VERSION) {
+            throw new IOException("Unsupported HyperLogLog sketch version " + bytes[OFFSET_VERSION]);
+        }
+        int precision = bytes[OFFSET_PRECISION];
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION || length != HEADER_SIZE + (1 << precision)) {
+            throw new IOException("Corrupt HyperLogLog sketch, precision " + precision + ", " + length + " bytes");
+        }
+        return new AstraHyperLogLog(bytes[OFFSET_HASH], precision, Arrays.copyOfRange(bytes, HEADER_SIZE, length));
+    }
+}
@@ -0,0 +1,133 @@
+package com.etdm.udf;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column profile of astra_profile: the bitset plus the counts and value bounds taken in the same pass.
+ * Values are compared through their canonical text, the one {@link AstraValueHasher} hashes, so two
+ * columns can only share a value when their text lengths and text ranges overlap. Numeric columns
+ * also carry their numeric range, which is tighter than the text order for amounts and ids.
+ * Bounds of BINARY columns are not tracked, they are null as are all bounds of an all-null column.
+ */
+final class AstraProfile {
+    static final List<String> FIELD_NAMES = Arrays.asList("bitset", "row_count", "null_count", "distinct_count",
+            "min_value", "max_value", "min_length", "max_length", "min_number", "max_number");
+
+    byte[] bitset;
+    long rowCount;
+    long nullCount;
+    long distinctCount;
+    String minValue;
+    String maxValue;
+    /**
+     * -1 when unknown, as is maxLength.
+     */
+    int minLength = -1;
+    int maxLength = -1;
+    /**
+     * NaN when unknown, as is maxNumber.
+     */
+    double minNumber = Double.NaN;
+    double maxNumber = Double.NaN;
+
+    static StructObjectInspector writableObjectInspector() {
+        return ObjectInspectorFactory.getStandardStructObjectInspector(FIELD_NAMES, Arrays.<ObjectInspector>asList(
+                PrimitiveObjectInspectorFactory.writableBinaryObjectInspector,
+                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                PrimitiveObjectInspectorFactory.writableDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
+    }
+
+    /**
+     * True when no value can be in both columns, checked before any bitset is decoded.
+     */
+    static boolean disjoint(AstraProfile left, AstraProfile right) {
+        if (left.minLength >= 0 && right.minLength >= 0
+                && (left.maxLength < right.minLength || right.maxLength < left.minLength)) {
+            return true;
+        }
+        if (left.minValue != null && right.minValue != null
+                && (left.maxValue.compareTo(right.minValue) < 0 || right.maxValue.compareTo(left.minValue) < 0)) {
+            return true;
+        }
+        return !Double.isNaN(left.minNumber) && !Double.isNaN(right.minNumber)
+                && (left.maxNumber < right.minNumber || right.maxNumber < left.minNumber);
+    }
+
+    /**
+     * Reads profiles from structs of a given ObjectInspector, one instance per evaluator.
+     */
+    static final class Reader {
+        private final StructObjectInspector oi;
+        private final StructField[] fields = new StructField[FIELD_NAMES.size()];
+        private final PrimitiveObjectInspector[] fieldOIs = new PrimitiveObjectInspector[FIELD_NAMES.size()];
+
+        Reader(StructObjectInspector oi) {
+            this.oi = oi;
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = oi.getStructFieldRef(FIELD_NAMES.get(i));
+                fieldOIs[i] = (PrimitiveObjectInspector) fields[i].getFieldObjectInspector();
+            }
+        }
+
+        /**
+         * True when the struct's fields are the ones of a profile.
+         */
+        static boolean isProfile(ObjectInspector oi) {
+            if (oi.getCategory() != ObjectInspector.Category.STRUCT) {
+                return false;
+            }
+            for (String name : FIELD_NAMES) {
+                if (((StructObjectInspector) oi).getStructFieldRef(name) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        AstraProfile read(Object struct, AstraProfile profile) {
+            profile.bitset = ((BinaryObjectInspector) fieldOIs[0]).getPrimitiveJavaObject(field(struct, 0));
+            profile.rowCount = longField(struct, 1);
+            profile.nullCount = longField(struct, 2);
+            profile.distinctCount = longField(struct, 3);
+            Object value = field(struct, 4);
+            profile.minValue = value == null ? null : PrimitiveObjectInspectorUtils.getString(value, fieldOIs[4]);
+            value = field(struct, 5);
+            profile.maxValue = value == null ? null : PrimitiveObjectInspectorUtils.getString(value, fieldOIs[5]);
+            value = field(struct, 6);
+            profile.minLength = value == null ? -1 : PrimitiveObjectInspectorUtils.getInt(value, fieldOIs[6]);
+            value = field(struct, 7);
+            profile.maxLength = value == null ? -1 : PrimitiveObjectInspectorUtils.getInt(value, fieldOIs[7]);
+            value = field(struct, 8);
+            profile.minNumber = value == null ? Double.NaN : PrimitiveObjectInspectorUtils.getDouble(value, fieldOIs[8]);
+            value = field(struct, 9);
+            profile.maxNumber = value == null ? Double.NaN : PrimitiveObjectInspectorUtils.getDouble(value, fieldOIs[9]);
+            return profile;
+        }
+
+        private Object field(Object struct, int index) {
+            return oi.getStructFieldData(struct, fields[index]);
+        }
+
+        private long longField(Object struct, int index) {
+            Object value = field(struct, index);
+            return value == null ? 0 : PrimitiveObjectInspectorUtils.getLong(value, fieldOIs[index]);
+        }
+    }
+}
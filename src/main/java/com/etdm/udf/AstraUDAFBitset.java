@@ -1,15 +1,9 @@
 package com.etdm.udf;
 
-import vendor.google.common.hash.HashFunction;
-import vendor.google.common.hash.Hashing;
-import com.zaxxer.sparsebits.SparseBitSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hive.common.io.NonSyncByteArrayInputStream;
-//import org.apache.hadoop.hive.common.type.Date;
-import org.apache.hadoop.hive.common.type.HiveDecimal;
-//import org.apache.hadoop.hive.common.type.Timestamp;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -17,32 +11,88 @@ import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 
 @Description (
         name = "astra_bitset",
-        value = "_FUNC_(col1) - bitset as blob"
+        value = "_FUNC_(col1[, 'hash[:bits]']) - bitset as blob, positions from murmur3_32 (default), "
+                + "murmur3_128 or farmhash64 cut to 31..40 bits (default 40)",
+        extended = "select column_name, astra_bitset(value, 'farmhash64:36') from column_values group by column_name"
 )
 
 
 
 public class AstraUDAFBitset implements GenericUDAFResolver2 {
     static final Log LOG = LogFactory.getLog(AstraUDAFBitset.class.getName());
-    private static final HashFunction hashFunction = Hashing.murmur3_32();
+    static final String MAX_BYTES_CONF = "astra.bitset.max.bytes";
+    static final String COUNTER_GROUP = "AstraUDAFBitset";
+
+    /**
+     * Bit position of a murmur3_32 hash, kept as it was when the hash was taken over the value's String.
+     */
+    static int position(long hash) {
+        return ((int) hash & Integer.MAX_VALUE) % Integer.MAX_VALUE;
+    }
+
+    /**
+     * Hasher of the optional constant spec parameter, see {@link AstraValueHasher#of(String)}.
+     */
+    static AstraValueHasher hasher(ObjectInspector[] parameters, int index) throws UDFArgumentTypeException {
+        if (parameters.length <= index || !isHashSpec(parameters[index])) {
+            return new AstraValueHasher();
+        }
+        try {
+            return AstraValueHasher.of(((ConstantObjectInspector) parameters[index]).getWritableConstantValue().toString());
+        } catch (IllegalArgumentException e) {
+            throw new UDFArgumentTypeException(index, e.getMessage());
+        }
+    }
 
-    private static int hash(String string) {
-        //return (hashFunction.hashUnencodedChars(string).asInt() & Integer.MAX_VALUE) % Integer.MAX_VALUE;
-        return (hashFunction.hashUnencodedChars(string).asInt() & Integer.MAX_VALUE) % Integer.MAX_VALUE;
+    /**
+     * Per-buffer memory cap from the job configuration, 0 when buffers are unbounded.
+     */
+    static long maxBytes(MapredContext mapredContext) {
+        return mapredContext.getJobConf() == null ? 0 : mapredContext.getJobConf().getLong(MAX_BYTES_CONF, 0);
+    }
+
+    /**
+     * Folds a buffer that grew past the cap into a fixed-size sketch, see {@link AstraBitmap#fold}.
+     */
+    static void limit(AstraBitmap bitmap, long maxBytes) {
+        if (maxBytes > 0 && bitmap.sizeInBytes() > maxBytes && !bitmap.isFolded()) {
+            LOG.info("Bitset of " + bitmap.cardinality() + " values takes " + bitmap.sizeInBytes()
+                    + " bytes, folding to " + AstraBitmap.foldBits(maxBytes) + " bits");
+            bitmap.fold(AstraBitmap.foldBits(maxBytes));
+        }
+    }
+
+    /**
+     * ORs a blob into a buffer, the merge of astra_bitset and astra_bitset_union.
+     */
+    static void or(SparseBitSetBuf buf, byte[] bytes, int length, long maxBytes) throws IOException {
+        buf.domain.check(bytes, length);
+        AstraBitsetCodec.orInto(buf.bitmap, bytes, length);
+        limit(buf.bitmap, maxBytes);
+    }
+
+    /**
+     * Blob of a buffer. The hash function of a merged buffer is the one of its partials,
+     * the spec parameter only reaches the evaluators that hash. A final buffer that got
+     * no partials is written as an empty murmur3_32 blob, which {@link AstraBitsetCodec.Domain} ignores.
+     */
+    static byte[] write(AstraBitsetCodec.Writer writer, SparseBitSetBuf buf, AstraValueHasher hasher) {
+        AstraBitsetCodec.Domain domain = buf.domain;
+        byte hashId = domain.hashId() != 0 ? domain.hashId() : hasher != null ? hasher.hashId() : AstraBitsetCodec.HASH_MURMUR3_32;
+        int domainBits = domain.domainBits() != 0 ? domain.domainBits() : hasher != null ? hasher.domainBits() : AstraBitsetCodec.DOMAIN_BITS_31;
+        return writer.write(buf.bitmap, hashId, (byte) domainBits);
     }
 
     public AstraUDAFBitset() {
@@ -60,13 +110,38 @@ public class AstraUDAFBitset implements GenericUDAFResolver2 {
         /*if (paramInfo.isWindowing()) {
             throw new UDFArgumentException("Not a windowing function!");
         }*/
+        checkParameters(ois);
+        return new BitSetEvaluator();
+    }
+
+    /**
+     * A primitive column and an optional hash spec constant, shared with astra_profile.
+     * Any other primitive second parameter, such as the 0 of astra_bs_0(col, 0), is ignored
+     * as it always was and the column is hashed with the default murmur3_32 into 31 bits.
+     */
+    static void checkParameters(ObjectInspector[] ois) throws UDFArgumentException {
+        if (ois.length < 1 || ois.length > 2) {
+            throw new UDFArgumentException("A column and an optional hash spec expected");
+        }
         if (!ois[0].getCategory().equals(ObjectInspector.Category.PRIMITIVE)) {
             throw new UDFArgumentException("The first parameter must be primitive!");
         }
-        if (!ois[1].getCategory().equals(ObjectInspector.Category.PRIMITIVE)) {
-            throw new UDFArgumentException("The second parameter must be primitive!");
+        if (ois.length > 1) {
+            if (!ois[1].getCategory().equals(ObjectInspector.Category.PRIMITIVE)) {
+                throw new UDFArgumentTypeException(1, "The second parameter must be primitive!");
+            }
+            if (((PrimitiveObjectInspector) ois[1]).getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.STRING
+                    && !(ois[1] instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(1, "A hash spec must be a string constant!");
+            }
+            hasher(ois, 1);
         }
-        return new BitSetEvaluator();
+    }
+
+    private static boolean isHashSpec(ObjectInspector oi) {
+        return oi instanceof ConstantObjectInspector && oi.getCategory() == ObjectInspector.Category.PRIMITIVE
+                && ((PrimitiveObjectInspector) oi).getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.STRING
+                && ((ConstantObjectInspector) oi).getWritableConstantValue() != null;
     }
 
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
@@ -74,18 +149,31 @@ public class AstraUDAFBitset implements GenericUDAFResolver2 {
     }
 
     public static class BitSetEvaluator extends GenericUDAFEvaluator {
-        private PrimitiveObjectInspector inputOI;
-        private final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        private AstraColumnHasher columnHasher;
+        private AstraValueHasher hasher;
+        private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+        private long maxBytes;
+        private MapredContext mapredContext = null;
+        private final AstraCounters counters = new AstraCounters(COUNTER_GROUP);
 
         public BitSetEvaluator() {
         }
 
+        @Override
+        public void configure(MapredContext mapredContext) {
+            super.configure(mapredContext);
+            this.mapredContext = mapredContext;
+            maxBytes = AstraUDAFBitset.maxBytes(mapredContext);
+        }
+
 
         @Override
         public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
             super.init(mode, parameters);
             if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE ) {
-                this.inputOI = (PrimitiveObjectInspector)parameters[0];
+                this.hasher = hasher(parameters, 1);
+                this.columnHasher = AstraColumnHasher.of(0, (PrimitiveObjectInspector)parameters[0], hasher);
+                counters.setType(((PrimitiveObjectInspector) parameters[0]).getPrimitiveCategory());
             }
             return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
         }
@@ -98,97 +186,39 @@ public class AstraUDAFBitset implements GenericUDAFResolver2 {
 
         public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
             SparseBitSetBuf buff = (SparseBitSetBuf)aggregationBuffer;
-            buff.bitSet.clear();
+            buff.bitmap.clear();
+            buff.domain.reset();
         }
 
         public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
-            if (parameters != null && parameters[0] != null) {
-                String value = null;
-                switch(this.inputOI.getPrimitiveCategory()) {
-                    case BOOLEAN:
-                        boolean vBoolean = ((BooleanObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vBoolean);
-                        break;
-                    case BYTE:
-                        byte vByte = ((ByteObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vByte);
-                        break;
-                    case SHORT:
-                        short vShort  = ((ShortObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vShort);
-                        break;
-                    case INT:
-                        int vInt  = ((IntObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vInt);
-                        break;
-                    case LONG:
-                        long vLong = ((LongObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vLong);
-                        break;
-                    case FLOAT:
-                        float vFloat = ((FloatObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vFloat);
-                        break;
-                    case DOUBLE:
-                        double vDouble = ((DoubleObjectInspector)this.inputOI).get(parameters[0]);
-                        value = String.valueOf(vDouble);
-                        break;
-                    case DECIMAL:
-                        HiveDecimal vDecimal = ((HiveDecimalObjectInspector)this.inputOI).getPrimitiveJavaObject(parameters[0]);
-                        if (vDecimal != null) {
-                            value = vDecimal.toString();
-                        }
-                        break;
-                   /* case DATE:
-                        Date v = ((DateObjectInspector)this.inputOI).getPrimitiveJavaObject(parameters[0]);
-                        if (v != null) {
-                            value = v.toString(); // pattern "yyyy-MM-dd" hardcoded
-                        }
-                        break;
-                    case TIMESTAMP:
-                        Timestamp vTimestamp = ((TimestampObjectInspector)this.inputOI).getPrimitiveJavaObject(parameters[0]);
-                        if (vTimestamp != null) {
-                            value = vTimestamp.toString();
-                        }
-                        break;*/
-                    case CHAR:
-                        value = ((HiveCharObjectInspector)this.inputOI).getPrimitiveJavaObject(parameters[0]).getStrippedValue();
-                        break;
-                    case VARCHAR:
-                        value = ((HiveVarcharObjectInspector)this.inputOI).getPrimitiveJavaObject(parameters[0]).getValue();
-                        break;
-                    case STRING:
-                        value = ((StringObjectInspector)this.inputOI).getPrimitiveJavaObject(parameters[0]);
-                        break;
-                    case BINARY:
-                        //NOT APPLICABLE
-                        break;
-                    default:
-                        throw new UDFArgumentTypeException(0, "Bad primitive category " + this.inputOI.getPrimitiveCategory());
-                }
-                if (value != null) {
-                    SparseBitSet bs = ((SparseBitSetBuf)aggregationBuffer).bitSet;
-                    bs.set(hash(value));
+            if (parameters != null) {
+                long position = this.columnHasher.position(parameters[0]);
+                if (position != AstraColumnHasher.NULL_POSITION) {
+                    AstraBitmap bitmap = ((SparseBitSetBuf)aggregationBuffer).bitmap;
+                    counters.increment(AstraCounters.Counter.ROWS_HASHED);
+                    if (bitmap.add(position)) {
+                        counters.increment(AstraCounters.Counter.BITS_SET);
+                    }
+                    limit(bitmap, maxBytes);
+                } else {
+                    counters.increment(AstraCounters.Counter.NULLS_SKIPPED);
                 }
-
             }
-
         }
 
         public void merge(AggregationBuffer agg, Object partial) throws HiveException {
             if (partial != null) {
                 SparseBitSetBuf  bsBuff = (SparseBitSetBuf)agg;
                 BytesWritable bytes = (BytesWritable)partial;
-                try(NonSyncByteArrayInputStream in = new NonSyncByteArrayInputStream(bytes.getBytes());
-                    ObjectInputStream is = new ObjectInputStream(in)) {
-                    SparseBitSet partialBS = (SparseBitSet) is.readObject();
-                    int bit = -1;
-                    while( (bit = partialBS.nextSetBit(bit + 1)) >= 0) {
-                        bsBuff.bitSet.set(bit);
-                    }
-                } catch (IOException | ClassNotFoundException e) {
+                long start = System.nanoTime();
+                try {
+                    or(bsBuff, bytes.getBytes(), bytes.getLength(), maxBytes);
+                } catch (IOException e) {
+                    counters.increment(AstraCounters.Counter.CORRUPT_BLOBS);
                     throw new HiveException("Merge buffer",e);
                 }
+                counters.add(AstraCounters.Counter.DESERIALIZE_NANOS, System.nanoTime() - start);
+                counters.add(AstraCounters.Counter.BLOB_BYTES_IN, bytes.getLength());
 
             }
         }
@@ -201,14 +231,17 @@ public class AstraUDAFBitset implements GenericUDAFResolver2 {
 
 
         public Object terminate(AggregationBuffer agg) throws HiveException {
-            this.result.reset();
-            SparseBitSetBuf bsBuff = (SparseBitSetBuf) agg;
-            try (ObjectOutputStream os = new ObjectOutputStream(this.result)) {
-                os.writeObject(bsBuff.bitSet);
-            } catch (IOException e) {
-                throw new HiveException("Terminate buffer", e);
-            }
-            return new BytesWritable(this.result.toByteArray());
+            long start = System.nanoTime();
+            byte[] bytes = write(this.writer, (SparseBitSetBuf) agg, hasher);
+            counters.add(AstraCounters.Counter.SERIALIZE_NANOS, System.nanoTime() - start);
+            counters.add(AstraCounters.Counter.BLOB_BYTES_OUT, bytes.length);
+            return new BytesWritable(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            LOG.info(counters);
+            counters.flush(mapredContext);
         }
     }
 
@@ -216,14 +249,15 @@ public class AstraUDAFBitset implements GenericUDAFResolver2 {
             estimable = true
     )
     static class SparseBitSetBuf extends GenericUDAFEvaluator.AbstractAggregationBuffer {
-        SparseBitSet bitSet;
+        final AstraBitmap bitmap;
+        final AstraBitsetCodec.Domain domain = new AstraBitsetCodec.Domain();
 
         public SparseBitSetBuf() {
-            bitSet = new SparseBitSet();
+            bitmap = new AstraBitmap();
         }
 
         public int estimate() {
-            return 2147483647;
+            return (int) Math.min(Integer.MAX_VALUE, bitmap.sizeInBytes());
         }
     }
 
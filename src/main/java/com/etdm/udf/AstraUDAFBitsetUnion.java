@@ -0,0 +1,113 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+
+
+/**
+ * OR of stored astra_bitset blobs, every input row goes through the partial merge of
+ * {@link AstraUDAFBitset.BitSetEvaluator}, container by container without decoding.
+ * Per-partition bitsets roll up into the table's bitset without rescanning the table.
+ */
+@Description (
+        name = "astra_bitset_union",
+        value = "_FUNC_(bitset) - OR of the bitsets of a group as blob",
+        extended = "select column_name, astra_bitset_union(bitset) from partition_bitsets group by column_name"
+)
+public class AstraUDAFBitsetUnion implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFBitsetUnion.class.getName());
+
+    public AstraUDAFBitsetUnion() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        ObjectInspector[] ois = paramInfo.getParameterObjectInspectors();
+        if (ois.length != 1) {
+            throw new UDFArgumentException("A bitset expected");
+        }
+        if (ois[0].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveObjectInspector) ois[0]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            throw new UDFArgumentTypeException(0, "The parameter must be binary!");
+        }
+        return new BitSetUnionEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new BitSetUnionEvaluator();
+    }
+
+    public static class BitSetUnionEvaluator extends GenericUDAFEvaluator {
+        private BinaryObjectInspector inputOI;
+        private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+        private long maxBytes;
+
+        public BitSetUnionEvaluator() {
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            super.configure(mapredContext);
+            maxBytes = AstraUDAFBitset.maxBytes(mapredContext);
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            inputOI = (BinaryObjectInspector) parameters[0];
+            return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new AstraUDAFBitset.SparseBitSetBuf();
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            AstraUDAFBitset.SparseBitSetBuf buf = (AstraUDAFBitset.SparseBitSetBuf) aggregationBuffer;
+            buf.bitmap.clear();
+            buf.domain.reset();
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters != null) {
+                merge(aggregationBuffer, parameters[0]);
+            }
+        }
+
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                BytesWritable bytes = inputOI.getPrimitiveWritableObject(partial);
+                try {
+                    AstraUDAFBitset.or((AstraUDAFBitset.SparseBitSetBuf) agg, bytes.getBytes(), bytes.getLength(), maxBytes);
+                } catch (IOException e) {
+                    throw new HiveException("Merge buffer", e);
+                }
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return this.terminate(agg);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            return new BytesWritable(AstraUDAFBitset.write(writer, (AstraUDAFBitset.SparseBitSetBuf) agg, null));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.io.IOException;
+
+
+/**
+ * Sum of the AND + popcount of joined posting blocks, see {@link AstraUDTFPostings}.
+ * Grouped by column pair it is the exact match count of {@link AstraUDTFMatch}. Blocks of bitsets
+ * of different hash functions or domain widths fail the query, as astra_bitset_or does.
+ */
+@Description (
+        name = "astra_block_overlap",
+        value = "_FUNC_(block_0, block_1) - number of positions set in both posting blocks, summed over the group",
+        extended = "select l.aux_0, r.aux_0, astra_block_overlap(l.block, r.block) as match "
+                + "from postings l join postings r on l.block_id = r.block_id "
+                + "where l.aux_0 < r.aux_0 group by l.aux_0, r.aux_0"
+)
+public class AstraUDAFBlockOverlap implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFBlockOverlap.class.getName());
+
+    public AstraUDAFBlockOverlap() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        ObjectInspector[] ois = paramInfo.getParameterObjectInspectors();
+        if (ois.length != 2) {
+            throw new UDFArgumentException("Two posting blocks expected");
+        }
+        if (paramInfo.isDistinct()) {
+            throw new UDFArgumentException("Distinct keyword is not applicable");
+        }
+        for (int index = 0; index < ois.length; index++) {
+            if (ois[index].getCategory() != ObjectInspector.Category.PRIMITIVE
+                    || ((PrimitiveObjectInspector) ois[index]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+                throw new UDFArgumentTypeException(index, "Parameter " + (index + 1) + " must be binary!");
+            }
+        }
+        return new BlockOverlapEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new BlockOverlapEvaluator();
+    }
+
+    public static class BlockOverlapEvaluator extends GenericUDAFEvaluator {
+        private BinaryObjectInspector leftOI;
+        private BinaryObjectInspector rightOI;
+        private LongObjectInspector partialOI;
+
+        public BlockOverlapEvaluator() {
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                leftOI = (BinaryObjectInspector) parameters[0];
+                rightOI = (BinaryObjectInspector) parameters[1];
+            } else {
+                partialOI = (LongObjectInspector) parameters[0];
+            }
+            return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new BlockOverlapBuf();
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            ((BlockOverlapBuf) aggregationBuffer).matched = 0;
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters == null || parameters[0] == null || parameters[1] == null) {
+                return;
+            }
+            BytesWritable left = leftOI.getPrimitiveWritableObject(parameters[0]);
+            BytesWritable right = rightOI.getPrimitiveWritableObject(parameters[1]);
+            if (left.getLength() == 0 || right.getLength() == 0) {
+                return;
+            }
+            try {
+                AstraBlocks.checkCompatible(left.getBytes(), left.getLength(), right.getBytes(), right.getLength());
+            } catch (IOException e) {
+                throw new HiveException("Posting blocks", e);
+            }
+            ((BlockOverlapBuf) aggregationBuffer).matched += AstraBlocks.andCardinality(
+                    left.getBytes(), left.getLength(), right.getBytes(), right.getLength());
+        }
+
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                ((BlockOverlapBuf) agg).matched += partialOI.get(partial);
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return this.terminate(agg);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            return new LongWritable(((BlockOverlapBuf) agg).matched);
+        }
+    }
+
+    static class BlockOverlapBuf extends GenericUDAFEvaluator.AbstractAggregationBuffer {
+        long matched;
+    }
+}
@@ -0,0 +1,154 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+
+
+@Description (
+        name = "astra_hll",
+        value = "_FUNC_(col1[, precision]) - HyperLogLog sketch of the column as blob, 2^precision registers (default 14)"
+)
+public class AstraUDAFHyperLogLog implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFHyperLogLog.class.getName());
+
+    public AstraUDAFHyperLogLog() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        ObjectInspector[] ois = paramInfo.getParameterObjectInspectors();
+        checkParameters(ois, paramInfo.isDistinct());
+        return new HyperLogLogEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new HyperLogLogEvaluator();
+    }
+
+    /**
+     * A primitive column and an optional constant sizing parameter, shared with astra_minhash.
+     */
+    static void checkParameters(ObjectInspector[] ois, boolean distinct) throws UDFArgumentException {
+        if (ois.length < 1 || ois.length > 2) {
+            throw new UDFArgumentException("A column and an optional size expected");
+        }
+        if (distinct) {
+            throw new UDFArgumentException("Distinct keyword is not applicable");
+        }
+        if (!ois[0].getCategory().equals(ObjectInspector.Category.PRIMITIVE)) {
+            throw new UDFArgumentTypeException(0, "The first parameter must be primitive!");
+        }
+        if (ois.length > 1 && !(ois[1] instanceof ConstantObjectInspector && ois[1].getCategory() == ObjectInspector.Category.PRIMITIVE)) {
+            throw new UDFArgumentTypeException(1, "The second parameter must be an integer constant!");
+        }
+    }
+
+    /**
+     * Value of an optional integer constant parameter.
+     */
+    static int intConstant(ObjectInspector[] parameters, int index, int defaultValue) {
+        if (parameters.length <= index) {
+            return defaultValue;
+        }
+        return PrimitiveObjectInspectorUtils.getInt(
+                ((ConstantObjectInspector) parameters[index]).getWritableConstantValue(), (PrimitiveObjectInspector) parameters[index]);
+    }
+
+    public static class HyperLogLogEvaluator extends GenericUDAFEvaluator {
+        private AstraColumnHasher columnHasher;
+        private int precision = AstraHyperLogLog.DEFAULT_PRECISION;
+
+        public HyperLogLogEvaluator() {
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                this.columnHasher = AstraColumnHasher.of(0, (PrimitiveObjectInspector) parameters[0],
+                        new AstraValueHasher(AstraBitsetCodec.HASH_MURMUR3_128));
+                precision = intConstant(parameters, 1, AstraHyperLogLog.DEFAULT_PRECISION);
+                if (precision < AstraHyperLogLog.MIN_PRECISION || precision > AstraHyperLogLog.MAX_PRECISION) {
+                    throw new UDFArgumentTypeException(1, "Precision must be within "
+                            + AstraHyperLogLog.MIN_PRECISION + ".." + AstraHyperLogLog.MAX_PRECISION);
+                }
+            }
+            return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new HyperLogLogBuf();
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            ((HyperLogLogBuf) aggregationBuffer).sketch = null;
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters != null && columnHasher.hash(parameters[0])) {
+                HyperLogLogBuf buf = (HyperLogLogBuf) aggregationBuffer;
+                if (buf.sketch == null) {
+                    buf.sketch = new AstraHyperLogLog(AstraBitsetCodec.HASH_MURMUR3_128, precision);
+                }
+                buf.sketch.add(columnHasher.hash);
+            }
+        }
+
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                HyperLogLogBuf buf = (HyperLogLogBuf) agg;
+                BytesWritable bytes = (BytesWritable) partial;
+                try {
+                    AstraHyperLogLog sketch = AstraHyperLogLog.fromBytes(bytes.getBytes(), bytes.getLength());
+                    if (buf.sketch == null) {
+                        buf.sketch = sketch;
+                    } else {
+                        buf.sketch.merge(sketch);
+                    }
+                } catch (IOException e) {
+                    throw new HiveException("Merge buffer", e);
+                }
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return this.terminate(agg);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            AstraHyperLogLog sketch = ((HyperLogLogBuf) agg).sketch;
+            if (sketch == null) {
+                sketch = new AstraHyperLogLog(AstraBitsetCodec.HASH_MURMUR3_128, precision);
+            }
+            return new BytesWritable(sketch.toBytes());
+        }
+    }
+
+    @GenericUDAFEvaluator.AggregationType(
+            estimable = true
+    )
+    static class HyperLogLogBuf extends GenericUDAFEvaluator.AbstractAggregationBuffer {
+        AstraHyperLogLog sketch;
+
+        public int estimate() {
+            return sketch == null ? 0 : (int) sketch.sizeInBytes();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+
+
+@Description (
+        name = "astra_minhash",
+        value = "_FUNC_(col1[, k]) - bottom-k MinHash signature of the column as blob, the k smallest value hashes (default 1024)"
+)
+public class AstraUDAFMinHash implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFMinHash.class.getName());
+
+    public AstraUDAFMinHash() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        ObjectInspector[] ois = paramInfo.getParameterObjectInspectors();
+        AstraUDAFHyperLogLog.checkParameters(ois, paramInfo.isDistinct());
+        return new MinHashEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new MinHashEvaluator();
+    }
+
+    public static class MinHashEvaluator extends GenericUDAFEvaluator {
+        private AstraColumnHasher columnHasher;
+        private int k = AstraBottomK.DEFAULT_K;
+
+        public MinHashEvaluator() {
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                this.columnHasher = AstraColumnHasher.of(0, (PrimitiveObjectInspector) parameters[0],
+                        new AstraValueHasher(AstraBitsetCodec.HASH_MURMUR3_128));
+                k = AstraUDAFHyperLogLog.intConstant(parameters, 1, AstraBottomK.DEFAULT_K);
+                if (k < AstraBottomK.MIN_K || k > AstraBottomK.MAX_K) {
+                    throw new UDFArgumentTypeException(1, "k must be within "
+                            + AstraBottomK.MIN_K + ".." + AstraBottomK.MAX_K);
+                }
+            }
+            return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new MinHashBuf();
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            ((MinHashBuf) aggregationBuffer).sketch = null;
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters != null && columnHasher.hash(parameters[0])) {
+                MinHashBuf buf = (MinHashBuf) aggregationBuffer;
+                if (buf.sketch == null) {
+                    buf.sketch = new AstraBottomK(AstraBitsetCodec.HASH_MURMUR3_128, k);
+                }
+                buf.sketch.add(columnHasher.hash);
+            }
+        }
+
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                MinHashBuf buf = (MinHashBuf) agg;
+                BytesWritable bytes = (BytesWritable) partial;
+                try {
+                    AstraBottomK sketch = AstraBottomK.fromBytes(bytes.getBytes(), bytes.getLength());
+                    if (buf.sketch == null) {
+                        buf.sketch = sketch;
+                    } else {
+                        buf.sketch.merge(sketch);
+                    }
+                } catch (IOException e) {
+                    throw new HiveException("Merge buffer", e);
+                }
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return this.terminate(agg);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            AstraBottomK sketch = ((MinHashBuf) agg).sketch;
+            if (sketch == null) {
+                sketch = new AstraBottomK(AstraBitsetCodec.HASH_MURMUR3_128, k);
+            }
+            return new BytesWritable(sketch.toBytes());
+        }
+    }
+
+    @GenericUDAFEvaluator.AggregationType(
+            estimable = true
+    )
+    static class MinHashBuf extends GenericUDAFEvaluator.AbstractAggregationBuffer {
+        AstraBottomK sketch;
+
+        public int estimate() {
+            return sketch == null ? 0 : (int) Math.min(Integer.MAX_VALUE, sketch.sizeInBytes());
+        }
+    }
+}
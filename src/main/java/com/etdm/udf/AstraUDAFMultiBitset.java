@@ -0,0 +1,216 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+@Description (
+        name = "astra_bitsets",
+        value = "_FUNC_(col1, col2, ...) - struct<col1:binary, col2:binary, ...> of one astra_bitset per column, built in one pass"
+)
+public class AstraUDAFMultiBitset implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFMultiBitset.class.getName());
+    static final String COUNTER_GROUP = "AstraUDAFMultiBitset";
+
+    public AstraUDAFMultiBitset() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        ObjectInspector[] ois = paramInfo.getParameterObjectInspectors();
+        if (ois.length == 0) {
+            throw new UDFArgumentException("At least one column expected");
+        }
+        if (paramInfo.isDistinct()) {
+            throw new UDFArgumentException("Distinct keyword is not applicable");
+        }
+        for (int i = 0; i < ois.length; i++) {
+            if (!ois[i].getCategory().equals(ObjectInspector.Category.PRIMITIVE)) {
+                throw new UDFArgumentTypeException(i, "Parameter " + (i + 1) + " must be primitive!");
+            }
+        }
+        return new MultiBitSetEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new MultiBitSetEvaluator();
+    }
+
+    /**
+     * Struct field name of a column, as Hive names the fields of struct().
+     */
+    static String fieldName(int column) {
+        return "col" + (column + 1);
+    }
+
+    public static class MultiBitSetEvaluator extends GenericUDAFEvaluator {
+        private AstraColumnHasher[] columnHashers;
+        private AstraValueHasher hasher;
+        private StructObjectInspector partialOI;
+        private List<? extends StructField> partialFields;
+        private BinaryObjectInspector[] partialFieldOIs;
+        private int columnCount;
+        private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+        private long maxBytes;
+        private MapredContext mapredContext = null;
+        private final AstraCounters counters = new AstraCounters(COUNTER_GROUP);
+
+        public MultiBitSetEvaluator() {
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            super.configure(mapredContext);
+            this.mapredContext = mapredContext;
+            maxBytes = AstraUDAFBitset.maxBytes(mapredContext);
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                columnCount = parameters.length;
+                columnHashers = new AstraColumnHasher[columnCount];
+                hasher = new AstraValueHasher();
+                for (int i = 0; i < columnCount; i++) {
+                    columnHashers[i] = AstraColumnHasher.of(i, (PrimitiveObjectInspector) parameters[i], hasher);
+                }
+            } else {
+                partialOI = (StructObjectInspector) parameters[0];
+                partialFields = partialOI.getAllStructFieldRefs();
+                columnCount = partialFields.size();
+                partialFieldOIs = new BinaryObjectInspector[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    partialFieldOIs[i] = (BinaryObjectInspector) partialFields.get(i).getFieldObjectInspector();
+                }
+            }
+            List<String> fieldNames = new ArrayList<>(columnCount);
+            List<ObjectInspector> fieldOIs = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                fieldNames.add(fieldName(i));
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+            }
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new MultiBitSetBuf(columnCount);
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            for (AstraUDAFBitset.SparseBitSetBuf column : ((MultiBitSetBuf) aggregationBuffer).columns) {
+                column.bitmap.clear();
+                column.domain.reset();
+            }
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters != null) {
+                AstraUDAFBitset.SparseBitSetBuf[] columns = ((MultiBitSetBuf) aggregationBuffer).columns;
+                for (int i = 0; i < columnCount; i++) {
+                    long position = columnHashers[i].position(parameters[i]);
+                    if (position != AstraColumnHasher.NULL_POSITION) {
+                        counters.increment(AstraCounters.Counter.ROWS_HASHED);
+                        if (columns[i].bitmap.add(position)) {
+                            counters.increment(AstraCounters.Counter.BITS_SET);
+                        }
+                        AstraUDAFBitset.limit(columns[i].bitmap, maxBytes);
+                    } else {
+                        counters.increment(AstraCounters.Counter.NULLS_SKIPPED);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Every column goes through the partial merge of astra_bitset, domain check and size cap included.
+         */
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                AstraUDAFBitset.SparseBitSetBuf[] columns = ((MultiBitSetBuf) agg).columns;
+                long start = System.nanoTime();
+                try {
+                    for (int i = 0; i < columnCount; i++) {
+                        Object field = partialOI.getStructFieldData(partial, partialFields.get(i));
+                        if (field != null) {
+                            BytesWritable bytes = partialFieldOIs[i].getPrimitiveWritableObject(field);
+                            AstraUDAFBitset.or(columns[i], bytes.getBytes(), bytes.getLength(), maxBytes);
+                            counters.add(AstraCounters.Counter.BLOB_BYTES_IN, bytes.getLength());
+                        }
+                    }
+                } catch (IOException e) {
+                    counters.increment(AstraCounters.Counter.CORRUPT_BLOBS);
+                    throw new HiveException("Merge buffer", e);
+                }
+                counters.add(AstraCounters.Counter.DESERIALIZE_NANOS, System.nanoTime() - start);
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return this.terminate(agg);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            AstraUDAFBitset.SparseBitSetBuf[] columns = ((MultiBitSetBuf) agg).columns;
+            Object[] result = new Object[columnCount];
+            long start = System.nanoTime();
+            for (int i = 0; i < columnCount; i++) {
+                byte[] bytes = AstraUDAFBitset.write(this.writer, columns[i], hasher);
+                counters.add(AstraCounters.Counter.BLOB_BYTES_OUT, bytes.length);
+                result[i] = new BytesWritable(bytes);
+            }
+            counters.add(AstraCounters.Counter.SERIALIZE_NANOS, System.nanoTime() - start);
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            LOG.info(counters);
+            counters.flush(mapredContext);
+        }
+    }
+
+    @GenericUDAFEvaluator.AggregationType(
+            estimable = true
+    )
+    static class MultiBitSetBuf extends GenericUDAFEvaluator.AbstractAggregationBuffer {
+        final AstraUDAFBitset.SparseBitSetBuf[] columns;
+
+        public MultiBitSetBuf(int columnCount) {
+            columns = new AstraUDAFBitset.SparseBitSetBuf[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = new AstraUDAFBitset.SparseBitSetBuf();
+            }
+        }
+
+        public int estimate() {
+            long size = 0;
+            for (AstraUDAFBitset.SparseBitSetBuf column : columns) {
+                size += column.bitmap.sizeInBytes();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, size);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.FloatObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+
+
+/**
+ * astra_bitset plus the column statistics the matcher prunes pairs with, see {@link AstraProfile}.
+ * Nulls are counted instead of skipped, and every value costs two text comparisons
+ * on the canonical text that was just hashed.
+ */
+@Description (
+        name = "astra_profile",
+        value = "_FUNC_(col1[, 'hash[:bits]']) - struct<bitset, row_count, null_count, distinct_count, min_value, max_value, "
+                + "min_length, max_length, min_number, max_number> of the column, bounds over its canonical text",
+        extended = "select l.column_name, r.column_name, m.* from profiles l join profiles r on l.column_name < r.column_name "
+                + "lateral view astra_match(l.profile, r.profile) m"
+)
+public class AstraUDAFProfile implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFProfile.class.getName());
+
+    public AstraUDAFProfile() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        if (paramInfo.isDistinct()) {
+            throw new UDFArgumentException("Distinct keyword is not applicable");
+        }
+        AstraUDAFBitset.checkParameters(paramInfo.getParameterObjectInspectors());
+        return new ProfileEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new ProfileEvaluator();
+    }
+
+    public static class ProfileEvaluator extends GenericUDAFEvaluator {
+        private AstraColumnHasher columnHasher;
+        private AstraValueHasher hasher;
+        /**
+         * The input when its values are numbers, null otherwise.
+         */
+        private PrimitiveObjectInspector numberOI;
+        private boolean floatInput;
+        private AstraProfile.Reader partialReader;
+        private final AstraProfile partial = new AstraProfile();
+        private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+        private long maxBytes;
+
+        public ProfileEvaluator() {
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            super.configure(mapredContext);
+            maxBytes = AstraUDAFBitset.maxBytes(mapredContext);
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                PrimitiveObjectInspector inputOI = (PrimitiveObjectInspector) parameters[0];
+                hasher = AstraUDAFBitset.hasher(parameters, 1);
+                columnHasher = AstraColumnHasher.of(0, inputOI, hasher);
+                switch (inputOI.getPrimitiveCategory()) {
+                    case BYTE:
+                    case SHORT:
+                    case INT:
+                    case LONG:
+                    case FLOAT:
+                    case DOUBLE:
+                    case DECIMAL:
+                        numberOI = inputOI;
+                        break;
+                    default:
+                        numberOI = null;
+                }
+                floatInput = inputOI.getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.FLOAT;
+            } else {
+                partialReader = new AstraProfile.Reader((StructObjectInspector) parameters[0]);
+            }
+            return AstraProfile.writableObjectInspector();
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new ProfileBuf();
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            ProfileBuf buf = (ProfileBuf) aggregationBuffer;
+            buf.bitmap.clear();
+            buf.domain.reset();
+            buf.rowCount = 0;
+            buf.nullCount = 0;
+            buf.minValue = null;
+            buf.maxValue = null;
+            buf.minLength = -1;
+            buf.maxLength = -1;
+            buf.minNumber = Double.NaN;
+            buf.maxNumber = Double.NaN;
+            buf.numeric = true;
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters == null) {
+                return;
+            }
+            ProfileBuf buf = (ProfileBuf) aggregationBuffer;
+            buf.rowCount++;
+            if (!columnHasher.hash(parameters[0])) {
+                buf.nullCount++;
+                return;
+            }
+            buf.bitmap.add(hasher.position(columnHasher.hash));
+            AstraUDAFBitset.limit(buf.bitmap, maxBytes);
+
+            int length = hasher.textLength();
+            if (length >= 0) {
+                if (buf.minLength < 0 || length < buf.minLength) {
+                    buf.minLength = length;
+                }
+                if (length > buf.maxLength) {
+                    buf.maxLength = length;
+                }
+                if (buf.minValue == null || hasher.compareText(buf.minValue) < 0) {
+                    buf.minValue = hasher.text();
+                }
+                if (buf.maxValue == null || hasher.compareText(buf.maxValue) > 0) {
+                    buf.maxValue = hasher.text();
+                }
+            }
+            if (numberOI == null) {
+                buf.numeric = false;
+            } else if (buf.numeric) {
+                addNumber(buf, number(parameters[0]));
+            }
+        }
+
+        /**
+         * Numeric value of the canonical text: a float is taken the way it is printed, not widened.
+         */
+        private double number(Object value) {
+            if (floatInput) {
+                return Double.parseDouble(Float.toString(((FloatObjectInspector) numberOI).get(value)));
+            }
+            return PrimitiveObjectInspectorUtils.getDouble(value, numberOI);
+        }
+
+        /**
+         * A NaN has no place in the numeric order, the column's numeric range is dropped.
+         */
+        private static void addNumber(ProfileBuf buf, double number) {
+            if (Double.isNaN(number)) {
+                buf.numeric = false;
+                return;
+            }
+            if (Double.isNaN(buf.minNumber) || number < buf.minNumber) {
+                buf.minNumber = number;
+            }
+            if (Double.isNaN(buf.maxNumber) || number > buf.maxNumber) {
+                buf.maxNumber = number;
+            }
+        }
+
+        public void merge(AggregationBuffer agg, Object partialResult) throws HiveException {
+            if (partialResult == null) {
+                return;
+            }
+            ProfileBuf buf = (ProfileBuf) agg;
+            AstraProfile profile = partialReader.read(partialResult, partial);
+            if (profile.bitset != null) {
+                try {
+                    AstraUDAFBitset.or(buf, profile.bitset, profile.bitset.length, maxBytes);
+                } catch (IOException e) {
+                    throw new HiveException("Merge buffer", e);
+                }
+            }
+            buf.rowCount += profile.rowCount;
+            buf.nullCount += profile.nullCount;
+            if (profile.minValue != null && (buf.minValue == null || profile.minValue.compareTo(buf.minValue) < 0)) {
+                buf.minValue = profile.minValue;
+            }
+            if (profile.maxValue != null && (buf.maxValue == null || profile.maxValue.compareTo(buf.maxValue) > 0)) {
+                buf.maxValue = profile.maxValue;
+            }
+            if (profile.minLength >= 0 && (buf.minLength < 0 || profile.minLength < buf.minLength)) {
+                buf.minLength = profile.minLength;
+            }
+            if (profile.maxLength > buf.maxLength) {
+                buf.maxLength = profile.maxLength;
+            }
+            if (profile.rowCount > profile.nullCount && buf.numeric) {
+                addNumber(buf, profile.minNumber);
+                if (buf.numeric) {
+                    addNumber(buf, profile.maxNumber);
+                }
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return this.terminate(agg);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            ProfileBuf buf = (ProfileBuf) agg;
+            boolean numbers = buf.numeric && !Double.isNaN(buf.minNumber);
+            return new Object[]{
+                    new BytesWritable(AstraUDAFBitset.write(writer, buf, hasher)),
+                    new LongWritable(buf.rowCount),
+                    new LongWritable(buf.nullCount),
+                    new LongWritable(buf.bitmap.distinctCount()),
+                    buf.minValue == null ? null : new Text(buf.minValue),
+                    buf.maxValue == null ? null : new Text(buf.maxValue),
+                    buf.minLength < 0 ? null : new IntWritable(buf.minLength),
+                    buf.maxLength < 0 ? null : new IntWritable(buf.maxLength),
+                    numbers ? new DoubleWritable(buf.minNumber) : null,
+                    numbers ? new DoubleWritable(buf.maxNumber) : null
+            };
+        }
+    }
+
+    @GenericUDAFEvaluator.AggregationType(
+            estimable = true
+    )
+    static class ProfileBuf extends AstraUDAFBitset.SparseBitSetBuf {
+        long rowCount;
+        long nullCount;
+        String minValue;
+        String maxValue;
+        int minLength = -1;
+        int maxLength = -1;
+        double minNumber = Double.NaN;
+        double maxNumber = Double.NaN;
+        /**
+         * False once a value without a numeric range was seen.
+         */
+        boolean numeric = true;
+
+        public int estimate() {
+            return super.estimate() + (minValue == null ? 0 : 2 * (minValue.length() + maxValue.length()));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * astra_bitset split by hash range: the high shard bits of a position pick its shard and every
+ * shard becomes its own SHARDED blob. Exploded into (shard_id, bitset) rows the shards
+ * of two columns join on shard_id, so one pair is matched by as many tasks as there are shards.
+ * The final map holds all 2^shard_bits shards, empty ones included, so that an inner join
+ * keeps the cardinality of a shard the other column has no value in.
+ */
+@Description (
+        name = "astra_bitset_shards",
+        value = "_FUNC_(col1[, shard_bits]) - map<int, binary> of shard id to the bitset of that hash range, "
+                + "2^shard_bits shards (default 4), empty shards included",
+        extended = "select s.column_name, t.shard_id, t.bitset from column_shards s "
+                + "lateral view explode(s.shards) t as shard_id, bitset"
+)
+public class AstraUDAFShardedBitset implements GenericUDAFResolver2 {
+    static final Log LOG = LogFactory.getLog(AstraUDAFShardedBitset.class.getName());
+    static final int DEFAULT_SHARD_BITS = 4;
+
+    public AstraUDAFShardedBitset() {
+
+    }
+
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo paramInfo) throws SemanticException {
+        ObjectInspector[] ois = paramInfo.getParameterObjectInspectors();
+        AstraUDAFHyperLogLog.checkParameters(ois, paramInfo.isDistinct());
+        return new ShardedBitSetEvaluator();
+    }
+
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos) throws SemanticException {
+        return new ShardedBitSetEvaluator();
+    }
+
+    public static class ShardedBitSetEvaluator extends GenericUDAFEvaluator {
+        private AstraColumnHasher columnHasher;
+        private int shardBits = DEFAULT_SHARD_BITS;
+        private MapObjectInspector partialOI;
+        private BinaryObjectInspector partialValueOI;
+        private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+
+        public ShardedBitSetEvaluator() {
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                this.columnHasher = AstraColumnHasher.of(0, (PrimitiveObjectInspector) parameters[0], new AstraValueHasher());
+                shardBits = AstraUDAFHyperLogLog.intConstant(parameters, 1, DEFAULT_SHARD_BITS);
+                if (shardBits < 1 || shardBits > AstraBitsetCodec.MAX_SHARD_BITS) {
+                    throw new UDFArgumentTypeException(1, "Shard bits must be within 1.." + AstraBitsetCodec.MAX_SHARD_BITS);
+                }
+            } else {
+                partialOI = (MapObjectInspector) parameters[0];
+                partialValueOI = (BinaryObjectInspector) partialOI.getMapValueObjectInspector();
+            }
+            return ObjectInspectorFactory.getStandardMapObjectInspector(
+                    PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                    PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new ShardedBitSetBuf();
+        }
+
+        public void reset(AggregationBuffer aggregationBuffer) throws HiveException {
+            ShardedBitSetBuf buf = (ShardedBitSetBuf) aggregationBuffer;
+            buf.bitmap.clear();
+            buf.shardBits = 0;
+            buf.domain.reset();
+        }
+
+        public void iterate(AggregationBuffer aggregationBuffer, Object[] parameters) throws HiveException {
+            if (parameters != null) {
+                long position = this.columnHasher.position(parameters[0]);
+                if (position != AstraColumnHasher.NULL_POSITION) {
+                    ((ShardedBitSetBuf) aggregationBuffer).bitmap.add(position);
+                }
+            }
+        }
+
+        /**
+         * Shards of a partial result are OR-ed into one bitmap, they cover disjoint key ranges.
+         */
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                ShardedBitSetBuf buf = (ShardedBitSetBuf) agg;
+                try {
+                    for (Object value : partialOI.getMap(partial).values()) {
+                        if (value == null) {
+                            continue;
+                        }
+                        BytesWritable bytes = partialValueOI.getPrimitiveWritableObject(value);
+                        int bits = AstraBitsetCodec.shardBits(bytes.getBytes(), bytes.getLength());
+                        if (buf.shardBits == 0) {
+                            buf.shardBits = bits;
+                        } else if (bits != buf.shardBits) {
+                            throw new IOException("Shards of " + bits + " and " + buf.shardBits + " bits");
+                        }
+                        buf.domain.check(bytes.getBytes(), bytes.getLength());
+                        AstraBitsetCodec.orInto(buf.bitmap, bytes.getBytes(), bytes.getLength());
+                    }
+                } catch (IOException e) {
+                    throw new HiveException("Merge buffer", e);
+                }
+            }
+        }
+
+        /**
+         * Partials carry the non-empty shards only, the merge ORs them back into one bitmap.
+         * An empty partial still carries shard 0, so that the final result has the shard width
+         * of the query even when every value of the group is null.
+         */
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return shards((ShardedBitSetBuf) agg, false);
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            return shards((ShardedBitSetBuf) agg, true);
+        }
+
+        private Map<IntWritable, BytesWritable> shards(ShardedBitSetBuf buf, boolean empty) {
+            AstraBitmap bitmap = buf.bitmap;
+            int bits = buf.shardBits != 0 ? buf.shardBits : shardBits;
+            byte hashId = buf.domain.hashId() != 0 ? buf.domain.hashId() : AstraBitsetCodec.HASH_MURMUR3_32;
+            byte domainBits = (byte) (buf.domain.domainBits() != 0 ? buf.domain.domainBits() : AstraBitsetCodec.DOMAIN_BITS_31);
+            Map<IntWritable, BytesWritable> shards = new LinkedHashMap<>();
+            int from = 0;
+            for (int shard = 0; shard < 1 << bits; shard++) {
+                int to = from;
+                while (to < bitmap.containerCount() && AstraBitsetCodec.shardOf(bitmap.key(to), bits) == shard) {
+                    to++;
+                }
+                if (empty || to > from) {
+                    shards.put(new IntWritable(shard), new BytesWritable(writer.write(bitmap,
+                            hashId, domainBits, from, to, bits, shard)));
+                }
+                from = to;
+            }
+            if (shards.isEmpty()) {
+                shards.put(new IntWritable(0), new BytesWritable(writer.write(bitmap,
+                        hashId, domainBits, 0, 0, bits, 0)));
+            }
+            return shards;
+        }
+    }
+
+    @GenericUDAFEvaluator.AggregationType(
+            estimable = true
+    )
+    static class ShardedBitSetBuf extends GenericUDAFEvaluator.AbstractAggregationBuffer {
+        final AstraBitmap bitmap = new AstraBitmap();
+        /**
+         * Shard bits of the merged partials, 0 until the first one.
+         */
+        int shardBits;
+        final AstraBitsetCodec.Domain domain = new AstraBitsetCodec.Domain();
+
+        public int estimate() {
+            return (int) Math.min(Integer.MAX_VALUE, bitmap.sizeInBytes());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+
+/**
+ * Row-wise OR of bitset blobs, typically a stored bitset and the astra_bitset of the new partitions.
+ * Null arguments are skipped and a single non-null blob is returned as it is,
+ * so a column without new data costs no decoding.
+ */
+@Description(
+        name = "astra_bitset_or",
+        value = "_FUNC_(bitset_0, bitset_1, ...) - OR of the non-null bitsets as blob, null when all are null",
+        extended = "select s.column_name, astra_bitset_or(s.bitset, n.bitset) from stored s "
+                + "left join new_partitions n on s.column_name = n.column_name"
+)
+public class AstraUDFBitsetOr extends GenericUDF {
+    static final Log LOG = LogFactory.getLog(AstraUDFBitsetOr.class.getName());
+
+    private BinaryObjectInspector[] inputOI = null;
+    private final AstraBitmap bitmap = new AstraBitmap();
+    private final AstraBitsetCodec.Domain domain = new AstraBitsetCodec.Domain();
+    private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+    private long maxBytes;
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        super.configure(mapredContext);
+        maxBytes = AstraUDAFBitset.maxBytes(mapredContext);
+    }
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] params) throws UDFArgumentException {
+        if (params.length < 1) {
+            throw new UDFArgumentException("AstraUDFBitsetOr() takes at least 1 argument");
+        }
+        inputOI = new BinaryObjectInspector[params.length];
+        for (int paramIndex = 0; paramIndex < params.length; paramIndex++) {
+            if (params[paramIndex].getCategory() != ObjectInspector.Category.PRIMITIVE
+                    || ((PrimitiveObjectInspector) params[paramIndex]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+                throw new UDFArgumentTypeException(paramIndex, "AstraUDFBitsetOr() takes a binary as parameter " + (paramIndex + 1));
+            }
+            inputOI[paramIndex] = (BinaryObjectInspector) params[paramIndex];
+        }
+        return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] args) throws HiveException {
+        BytesWritable single = null;
+        int count = 0;
+        bitmap.clear();
+        domain.reset();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                Object value = args[i].get();
+                if (value == null) {
+                    continue;
+                }
+                BytesWritable bytes = inputOI[i].getPrimitiveWritableObject(value);
+                domain.check(bytes.getBytes(), bytes.getLength());
+                if (count++ == 0) {
+                    single = bytes;
+                    continue;
+                }
+                if (count == 2) {
+                    AstraBitsetCodec.orInto(bitmap, single.getBytes(), single.getLength());
+                }
+                AstraBitsetCodec.orInto(bitmap, bytes.getBytes(), bytes.getLength());
+                AstraUDAFBitset.limit(bitmap, maxBytes);
+            }
+        } catch (IOException e) {
+            throw new HiveException("OR bitsets", e);
+        }
+        if (count < 2) {
+            return single == null ? null : new BytesWritable(single.copyBytes());
+        }
+        byte hashId = domain.hashId() != 0 ? domain.hashId() : AstraBitsetCodec.HASH_MURMUR3_32;
+        int domainBits = domain.domainBits() != 0 ? domain.domainBits() : AstraBitsetCodec.DOMAIN_BITS_31;
+        return new BytesWritable(writer.write(bitmap, hashId, (byte) domainBits));
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return getStandardDisplayString("astra_bitset_or", children);
+    }
+}
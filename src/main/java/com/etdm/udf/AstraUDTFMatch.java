@@ -1,6 +1,11 @@
 package com.etdm.udf;
 
-import com.zaxxer.sparsebits.SparseBitSet;
+import vendor.google.common.cache.Cache;
+import vendor.google.common.cache.CacheBuilder;
+import vendor.google.common.cache.CacheStats;
+import vendor.google.common.cache.Weigher;
+import vendor.google.common.hash.HashFunction;
+import vendor.google.common.hash.Hashing;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.MapredContext;
@@ -13,10 +18,9 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.mapred.Reporter;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -26,13 +30,27 @@ public class AstraUDTFMatch extends GenericUDTF {
     static final Log LOG = LogFactory.getLog(AstraUDTFMatch.class.getName());
     static int LEFT_BITSET_PARAM_INDEX = 0;
     static int RIGHT_BITSET_PARAM_INDEX = 1;
-    static int MAIN_COLUMN_COUNT = 3;
+    static int MAIN_COLUMN_COUNT = 7;
     static int MAIN_PARAM_COUNT = 2;
 
+    static final String CACHE_BYTES_CONF = "astra.match.cache.bytes";
+    static final long DEFAULT_CACHE_BYTES = 256L << 20;
+    static final String COUNTER_GROUP = "AstraUDTFMatch";
+    private static final HashFunction fingerprint = Hashing.farmHashFingerprint64();
+
     private BinaryObjectInspector leftOI = null;
     private BinaryObjectInspector rightOI = null;
+    private AstraProfile.Reader leftProfileReader = null;
+    private AstraProfile.Reader rightProfileReader = null;
+    private final AstraProfile leftProfile = new AstraProfile();
+    private final AstraProfile rightProfile = new AstraProfile();
+    private final AstraCounters counters = new AstraCounters(COUNTER_GROUP);
     private PrimitiveObjectInspector[] auxOI = null;
 
+    private MapredContext mapredContext = null;
+    private long cacheBytes = DEFAULT_CACHE_BYTES;
+    private Cache<Long, AstraBitmap> bitsetCache = null;
+
     //Defining input argument as string.
     @Override
     public StructObjectInspector initialize(ObjectInspector[] params) throws UDFArgumentException {
@@ -40,18 +58,24 @@ public class AstraUDTFMatch extends GenericUDTF {
             throw new UDFArgumentException("AstraUDTFMatch() takes more 1 argument");
         }
 
-        if (params[LEFT_BITSET_PARAM_INDEX].getCategory() != ObjectInspector.Category.PRIMITIVE
-                && ((PrimitiveObjectInspector) params[LEFT_BITSET_PARAM_INDEX]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
-            throw new UDFArgumentException("NameParserGenericUDTF() takes a binary as the 1st parameter");
+        // input, a bitset or an astra_profile struct on either side
+        if (AstraProfile.Reader.isProfile(params[LEFT_BITSET_PARAM_INDEX])) {
+            leftProfileReader = new AstraProfile.Reader((StructObjectInspector) params[LEFT_BITSET_PARAM_INDEX]);
+        } else if (params[LEFT_BITSET_PARAM_INDEX].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveObjectInspector) params[LEFT_BITSET_PARAM_INDEX]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            throw new UDFArgumentException("AstraUDTFMatch() takes a binary or a profile as the 1st parameter");
+        } else {
+            leftOI = (BinaryObjectInspector) params[LEFT_BITSET_PARAM_INDEX];
         }
-        if (params[RIGHT_BITSET_PARAM_INDEX].getCategory() != ObjectInspector.Category.PRIMITIVE
-                && ((PrimitiveObjectInspector) params[RIGHT_BITSET_PARAM_INDEX]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
-            throw new UDFArgumentException("NameParserGenericUDTF() takes a binary as the 2nd parameter");
+        if (AstraProfile.Reader.isProfile(params[RIGHT_BITSET_PARAM_INDEX])) {
+            rightProfileReader = new AstraProfile.Reader((StructObjectInspector) params[RIGHT_BITSET_PARAM_INDEX]);
+        } else if (params[RIGHT_BITSET_PARAM_INDEX].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveObjectInspector) params[RIGHT_BITSET_PARAM_INDEX]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            throw new UDFArgumentException("AstraUDTFMatch() takes a binary or a profile as the 2nd parameter");
+        } else {
+            rightOI = (BinaryObjectInspector) params[RIGHT_BITSET_PARAM_INDEX];
         }
 
-        // input
-        leftOI = (BinaryObjectInspector) params[LEFT_BITSET_PARAM_INDEX];
-        rightOI = (BinaryObjectInspector) params[RIGHT_BITSET_PARAM_INDEX];
         auxOI = new PrimitiveObjectInspector[params.length - MAIN_PARAM_COUNT];
         // output
         List<String> fieldNames = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT );
@@ -59,9 +83,17 @@ public class AstraUDTFMatch extends GenericUDTF {
         fieldNames.add("match");
         fieldNames.add("cardinality_0");
         fieldNames.add("cardinality_1");
-        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
-        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
-        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+        fieldNames.add("union_size");
+        fieldNames.add("jaccard");
+        fieldNames.add("containment_0");
+        fieldNames.add("containment_1");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
         for(int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
             fieldNames.add("aux_" + (paramIndex - MAIN_PARAM_COUNT));
             auxOI[auxIndex] = (PrimitiveObjectInspector)params[paramIndex];
@@ -75,15 +107,55 @@ public class AstraUDTFMatch extends GenericUDTF {
     @Override
     public void configure(MapredContext mapredContext) {
         super.configure(mapredContext);
+        this.mapredContext = mapredContext;
+        if (mapredContext.getJobConf() != null) {
+            cacheBytes = mapredContext.getJobConf().getLong(CACHE_BYTES_CONF, DEFAULT_CACHE_BYTES);
+        }
+        bitsetCache = null;
     }
 
-    private SparseBitSet convertToBitset(byte[] bytes)  throws IOException,ClassNotFoundException{
-        if (bytes != null) {
-            try(ObjectInputStream s = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
-                return (SparseBitSet) s.readObject();
-            }
+    /**
+     * Decoded bitsets by blob fingerprint. A cross join feeds the same few thousand blobs
+     * over and over, each one is decoded once while it stays within the memory budget.
+     * Built on first use since Hive may configure the UDTF after initialize().
+     */
+    private static Cache<Long, AstraBitmap> newBitsetCache(long maximumBytes) {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher(new Weigher<Long, AstraBitmap>() {
+                    @Override
+                    public int weigh(Long key, AstraBitmap value) {
+                        return (int) Math.min(Integer.MAX_VALUE, value.sizeInBytes());
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    private AstraBitmap convertToBitset(byte[] bytes)  throws IOException {
+        if (bytes == null) {
+            return null;
         }
-        return null;
+        if (cacheBytes <= 0) {
+            return decode(bytes);
+        }
+        if (bitsetCache == null) {
+            bitsetCache = newBitsetCache(cacheBytes);
+        }
+        Long key = fingerprint.hashBytes(bytes).asLong();
+        AstraBitmap bitmap = bitsetCache.getIfPresent(key);
+        if (bitmap == null) {
+            bitmap = decode(bytes);
+            bitsetCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private AstraBitmap decode(byte[] bytes) throws IOException {
+        long start = System.nanoTime();
+        AstraBitmap bitmap = AstraBitsetCodec.toBitmap(bytes);
+        counters.add(AstraCounters.Counter.DESERIALIZE_NANOS, System.nanoTime() - start);
+        return bitmap;
     }
 
 
@@ -91,52 +163,87 @@ public class AstraUDTFMatch extends GenericUDTF {
     public void process(Object[] params) throws HiveException {
 
         try {
-            SparseBitSet leftBs = convertToBitset(leftOI.getPrimitiveJavaObject(params[LEFT_BITSET_PARAM_INDEX]));
-            if (leftBs == null)
+            byte[] leftBytes = leftProfileReader == null ? leftOI.getPrimitiveJavaObject(params[LEFT_BITSET_PARAM_INDEX])
+                    : params[LEFT_BITSET_PARAM_INDEX] == null ? null : leftProfileReader.read(params[LEFT_BITSET_PARAM_INDEX], leftProfile).bitset;
+            byte[] rightBytes = rightProfileReader == null ? rightOI.getPrimitiveJavaObject(params[RIGHT_BITSET_PARAM_INDEX])
+                    : params[RIGHT_BITSET_PARAM_INDEX] == null ? null : rightProfileReader.read(params[RIGHT_BITSET_PARAM_INDEX], rightProfile).bitset;
+            if (leftBytes == null || rightBytes == null)
                 return;
-            SparseBitSet rightBs = convertToBitset(rightOI.getPrimitiveJavaObject(params[RIGHT_BITSET_PARAM_INDEX]));
-            if (rightBs == null)
+            counters.increment(AstraCounters.Counter.PAIRS_EVALUATED);
+            if (leftProfileReader != null && rightProfileReader != null && AstraProfile.disjoint(leftProfile, rightProfile)) {
+                counters.increment(AstraCounters.Counter.PROFILE_PRUNED_PAIRS);
                 return;
-
-            int matched = 0;
-            SparseBitSet smallBs, bigBs;
-
-            int leftCardinality = leftBs.cardinality();
-            int rightCardinality = rightBs.cardinality();
-            if (leftCardinality > rightCardinality) {
-                bigBs = leftBs;
-                smallBs = rightBs;
-            } else {
-                bigBs = rightBs;
-                smallBs = leftBs;
             }
+            counters.add(AstraCounters.Counter.BLOB_BYTES_IN, leftBytes.length + rightBytes.length);
 
-            for (int i = smallBs.nextSetBit(0); i >= 0; i = smallBs.nextSetBit(i + 1)) {
-                if (bigBs.get(i)) {
-                    matched++;
+            try {
+                AstraBitsetCodec.checkCompatible(leftBytes, leftBytes.length, rightBytes, rightBytes.length);
+            } catch (IOException e) {
+                if (counters.get(AstraCounters.Counter.INCOMPATIBLE_PAIRS) == 0) {
+                    LOG.warn("Skipping pairs of incompatible bitsets: " + e.getMessage());
                 }
+                counters.increment(AstraCounters.Counter.INCOMPATIBLE_PAIRS);
+                return;
+            }
+            // a legacy blob has no header to read its cardinality from, it is decoded once and counted
+            AstraBitmap leftBs = AstraBitsetCodec.isLegacy(leftBytes, leftBytes.length) ? convertToBitset(leftBytes) : null;
+            AstraBitmap rightBs = AstraBitsetCodec.isLegacy(rightBytes, rightBytes.length) ? convertToBitset(rightBytes) : null;
+            long leftCardinality = leftBs != null ? leftBs.cardinality() : AstraBitsetCodec.cardinality(leftBytes);
+            long rightCardinality = rightBs != null ? rightBs.cardinality() : AstraBitsetCodec.cardinality(rightBytes);
+            if (leftCardinality == 0 || rightCardinality == 0)
+                return;
+
+            if (leftBs == null) {
+                leftBs = convertToBitset(leftBytes);
+            }
+            if (rightBs == null) {
+                rightBs = convertToBitset(rightBytes);
             }
+
+            long matched = leftBs.estimateAndCardinality(rightBs);
             if (matched > 0) {
+                long union = leftCardinality + rightCardinality - matched;
                 Object[] row = new Object[auxOI.length + MAIN_COLUMN_COUNT];
                 int itemCount = 0;
                 row[itemCount++] = matched;
                 row[itemCount++] = leftCardinality;
                 row[itemCount++] = rightCardinality;
+                row[itemCount++] = union;
+                row[itemCount++] = (double) matched / union;
+                row[itemCount++] = (double) matched / leftCardinality;
+                row[itemCount++] = (double) matched / rightCardinality;
 
                 for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
                     row[itemCount++] = auxOI[auxIndex].getPrimitiveJavaObject(params[paramIndex]);
                 }
 
                 this.forward(row);
+                counters.increment(AstraCounters.Counter.PAIRS_EMITTED);
             }
-        } catch (ClassNotFoundException | IOException e) {
-            LOG.error(e);
-            return;
+        } catch (IOException e) {
+            // a corrupt blob costs its pairs, not the task; the first one is logged, the rest only counted
+            if (counters.get(AstraCounters.Counter.CORRUPT_BLOBS) == 0) {
+                LOG.error("Skipping pairs of a corrupt bitset", e);
+            }
+            counters.increment(AstraCounters.Counter.CORRUPT_BLOBS);
         }
     }
 
     @Override
     public void close() throws HiveException {
-
+        LOG.info(counters);
+        counters.flush(mapredContext);
+        if (bitsetCache == null) {
+            return;
+        }
+        CacheStats stats = bitsetCache.stats();
+        Reporter reporter = mapredContext != null ? mapredContext.getReporter() : null;
+        if (reporter != null) {
+            reporter.incrCounter(COUNTER_GROUP, "BITSET_CACHE_HITS", stats.hitCount());
+            reporter.incrCounter(COUNTER_GROUP, "BITSET_CACHE_MISSES", stats.missCount());
+            reporter.incrCounter(COUNTER_GROUP, "BITSET_CACHE_EVICTIONS", stats.evictionCount());
+        }
+        LOG.info("Bitset cache " + stats);
+        bitsetCache.invalidateAll();
     }
 }
@@ -0,0 +1,299 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * All-pairs overlap of a set of column bitsets inside one task, instead of a cross join
+ * that feeds {@link AstraUDTFMatch} one pair per row.
+ * The columns are decoded once and the upper triangle of the pair matrix is cut into
+ * {@link #TILE_SIZE} x {@link #TILE_SIZE} tiles that run on a fork-join pool. A pair is
+ * intersected only if its container occupancy summaries meet and the per-container
+ * cardinality bound can still reach the threshold. Folded bitsets skip the pruning and
+ * their overlap is estimated. Rows are forwarded from the calling thread once all tiles
+ * are done, in tile order.
+ */
+@Description(
+        name = "astra_overlap_matrix",
+        value = "_FUNC_(array<struct<id, bitset:binary>>[, threshold]) - (id_0, id_1, match, cardinality_0, cardinality_1, "
+                + "jaccard, containment_0, containment_1) for every pair of columns whose larger containment is at least "
+                + "the threshold (default 0)",
+        extended = "select astra_overlap_matrix(c.columns, 0.9) from "
+                + "(select collect_list(named_struct('id', column_name, 'bitset', bs)) as columns from column_bitsets) c"
+)
+public class AstraUDTFOverlapMatrix extends GenericUDTF {
+
+    static final Log LOG = LogFactory.getLog(AstraUDTFOverlapMatrix.class.getName());
+    static int COLUMNS_PARAM_INDEX = 0;
+    static int THRESHOLD_PARAM_INDEX = 1;
+    static int ID_FIELD_INDEX = 0;
+    static int BITSET_FIELD_INDEX = 1;
+    static final int TILE_SIZE = 64;
+    static final String PARALLELISM_CONF = "astra.overlap.parallelism";
+
+    private ListObjectInspector columnsOI = null;
+    private StructObjectInspector columnOI = null;
+    private StructField idField = null;
+    private StructField bitsetField = null;
+    private PrimitiveObjectInspector idOI = null;
+    private BinaryObjectInspector bitsetOI = null;
+    private double threshold = 0;
+    private final AstraBitsetCodec.Domain domain = new AstraBitsetCodec.Domain();
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool pool = null;
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] params) throws UDFArgumentException {
+        if (params.length < 1 || params.length > 2) {
+            throw new UDFArgumentException("AstraUDTFOverlapMatrix() takes an array of (id, bitset) structs and an optional threshold");
+        }
+        if (params[COLUMNS_PARAM_INDEX].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(COLUMNS_PARAM_INDEX, "An array of (id, bitset) structs expected");
+        }
+        columnsOI = (ListObjectInspector) params[COLUMNS_PARAM_INDEX];
+        ObjectInspector elementOI = columnsOI.getListElementObjectInspector();
+        if (elementOI.getCategory() != ObjectInspector.Category.STRUCT) {
+            throw new UDFArgumentTypeException(COLUMNS_PARAM_INDEX, "An array of (id, bitset) structs expected");
+        }
+        columnOI = (StructObjectInspector) elementOI;
+        List<? extends StructField> fields = columnOI.getAllStructFieldRefs();
+        if (fields.size() < 2) {
+            throw new UDFArgumentTypeException(COLUMNS_PARAM_INDEX, "An array of (id, bitset) structs expected");
+        }
+        idField = fields.get(ID_FIELD_INDEX);
+        bitsetField = fields.get(BITSET_FIELD_INDEX);
+        if (idField.getFieldObjectInspector().getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(COLUMNS_PARAM_INDEX, "Column id must be primitive");
+        }
+        ObjectInspector bitsetFieldOI = bitsetField.getFieldObjectInspector();
+        if (bitsetFieldOI.getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveObjectInspector) bitsetFieldOI).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            throw new UDFArgumentTypeException(COLUMNS_PARAM_INDEX, "Column bitset must be binary");
+        }
+        idOI = (PrimitiveObjectInspector) idField.getFieldObjectInspector();
+        bitsetOI = (BinaryObjectInspector) bitsetFieldOI;
+
+        if (params.length > THRESHOLD_PARAM_INDEX) {
+            ObjectInspector thresholdOI = params[THRESHOLD_PARAM_INDEX];
+            if (!(thresholdOI instanceof ConstantObjectInspector) || thresholdOI.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(THRESHOLD_PARAM_INDEX, "Threshold must be a numeric constant");
+            }
+            threshold = PrimitiveObjectInspectorUtils.getDouble(
+                    ((ConstantObjectInspector) thresholdOI).getWritableConstantValue(), (PrimitiveObjectInspector) thresholdOI);
+            if (threshold < 0 || threshold > 1) {
+                throw new UDFArgumentTypeException(THRESHOLD_PARAM_INDEX, "Threshold must be between 0 and 1");
+            }
+        }
+
+        List<String> fieldNames = new ArrayList<>(8);
+        List<ObjectInspector> fieldOIs = new ArrayList<>(8);
+        ObjectInspector idOutputOI = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(idOI.getTypeInfo());
+        fieldNames.add("id_0");
+        fieldNames.add("id_1");
+        fieldNames.add("match");
+        fieldNames.add("cardinality_0");
+        fieldNames.add("cardinality_1");
+        fieldNames.add("jaccard");
+        fieldNames.add("containment_0");
+        fieldNames.add("containment_1");
+        fieldOIs.add(idOutputOI);
+        fieldOIs.add(idOutputOI);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        super.configure(mapredContext);
+        if (mapredContext.getJobConf() != null) {
+            parallelism = Math.max(1, mapredContext.getJobConf().getInt(PARALLELISM_CONF, parallelism));
+        }
+    }
+
+    @Override
+    public void process(Object[] params) throws HiveException {
+        Object list = params[COLUMNS_PARAM_INDEX];
+        int length = list == null ? 0 : columnsOI.getListLength(list);
+        List<Column> columns = new ArrayList<>(length);
+        domain.reset();
+        for (int i = 0; i < length; i++) {
+            Object element = columnsOI.getListElement(list, i);
+            if (element == null) {
+                continue;
+            }
+            Object id = idOI.getPrimitiveJavaObject(columnOI.getStructFieldData(element, idField));
+            byte[] bytes = bitsetOI.getPrimitiveJavaObject(columnOI.getStructFieldData(element, bitsetField));
+            if (bytes == null) {
+                continue;
+            }
+            AstraBitmap bitmap;
+            try {
+                domain.check(bytes, bytes.length);
+                bitmap = AstraBitsetCodec.toBitmap(bytes);
+            } catch (IOException e) {
+                throw new HiveException("Decode bitset of column " + id, e);
+            }
+            if (!bitmap.isEmpty()) {
+                columns.add(new Column(id, bitmap));
+            }
+        }
+        if (columns.size() < 2) {
+            return;
+        }
+
+        int tiles = (columns.size() + TILE_SIZE - 1) / TILE_SIZE;
+        int[] tilePairs = new int[tiles * (tiles + 1)];
+        int pairCount = 0;
+        for (int ti = 0; ti < tiles; ti++) {
+            for (int tj = ti; tj < tiles; tj++) {
+                tilePairs[2 * pairCount] = ti;
+                tilePairs[2 * pairCount + 1] = tj;
+                pairCount++;
+            }
+        }
+        List<?>[] rows = new List<?>[pairCount];
+        LongAdder intersected = new LongAdder();
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        pool.invoke(new TileTask(columns, threshold, tilePairs, 0, pairCount, rows, intersected));
+
+        long emitted = 0;
+        for (List<?> tileRows : rows) {
+            for (Object row : tileRows) {
+                forward(row);
+                emitted++;
+            }
+        }
+        long pairs = (long) columns.size() * (columns.size() - 1) / 2;
+        LOG.info("Overlap of " + columns.size() + " columns: " + pairs + " pairs, "
+                + intersected.sum() + " intersected, " + emitted + " emitted");
+    }
+
+    @Override
+    public void close() throws HiveException {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    static final class Column {
+        final Object id;
+        final AstraBitmap bitmap;
+        final long cardinality;
+        final long occupancy;
+
+        Column(Object id, AstraBitmap bitmap) {
+            this.id = id;
+            this.bitmap = bitmap;
+            this.cardinality = bitmap.distinctCount();
+            this.occupancy = bitmap.occupancy();
+        }
+    }
+
+    /**
+     * Splits a range of tile pairs in halves down to one tile pair, whose rows go to its own slot.
+     */
+    static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Column> columns;
+        private final double threshold;
+        private final int[] tilePairs;
+        private final int from;
+        private final int to;
+        private final List<?>[] rows;
+        private final LongAdder intersected;
+
+        TileTask(List<Column> columns, double threshold, int[] tilePairs, int from, int to, List<?>[] rows, LongAdder intersected) {
+            this.columns = columns;
+            this.threshold = threshold;
+            this.tilePairs = tilePairs;
+            this.from = from;
+            this.to = to;
+            this.rows = rows;
+            this.intersected = intersected;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(columns, threshold, tilePairs, from, middle, rows, intersected),
+                        new TileTask(columns, threshold, tilePairs, middle, to, rows, intersected));
+                return;
+            }
+            int rowFrom = tilePairs[2 * from] * TILE_SIZE;
+            int columnFrom = tilePairs[2 * from + 1] * TILE_SIZE;
+            int rowTo = Math.min(rowFrom + TILE_SIZE, columns.size());
+            int columnTo = Math.min(columnFrom + TILE_SIZE, columns.size());
+            List<Object[]> tileRows = new ArrayList<>();
+            long exact = 0;
+            for (int i = rowFrom; i < rowTo; i++) {
+                Column left = columns.get(i);
+                for (int j = Math.max(columnFrom, i + 1); j < columnTo; j++) {
+                    Column right = columns.get(j);
+                    long required = Math.max(1, (long) Math.ceil(threshold * Math.min(left.cardinality, right.cardinality)));
+                    if (!left.bitmap.isFolded() && !right.bitmap.isFolded()) {
+                        if ((left.occupancy & right.occupancy) == 0) {
+                            continue;
+                        }
+                        if (left.bitmap.andCardinalityBound(right.bitmap) < required) {
+                            continue;
+                        }
+                    }
+                    exact++;
+                    long matched = left.bitmap.estimateAndCardinality(right.bitmap);
+                    if (matched >= required) {
+                        tileRows.add(row(left, right, matched));
+                    }
+                }
+            }
+            intersected.add(exact);
+            rows[from] = tileRows;
+        }
+
+        private static Object[] row(Column left, Column right, long matched) {
+            long union = left.cardinality + right.cardinality - matched;
+            return new Object[]{
+                    left.id,
+                    right.id,
+                    matched,
+                    left.cardinality,
+                    right.cardinality,
+                    (double) matched / union,
+                    (double) matched / left.cardinality,
+                    (double) matched / right.cardinality
+            };
+        }
+    }
+}
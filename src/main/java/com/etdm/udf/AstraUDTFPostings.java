@@ -0,0 +1,157 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inverted postings of a bitset: one (block_id, cardinality, block) row per non-empty 4096-bit block,
+ * see {@link AstraBlocks}. Each block carries the hash function and domain width of its bitset.
+ * An equi-join of the postings on block_id yields only the column pairs that share a block,
+ * and {@link AstraUDAFBlockOverlap} adds their blocks' intersections up.
+ * Replaces the all-pairs cross join into {@link AstraUDTFMatch} with work proportional to the overlap.
+ */
+@Description(
+        name = "astra_postings",
+        value = "_FUNC_(bitset, aux...) - (block_id, cardinality, block, aux...) for every non-empty 4096-bit block of the bitset",
+        extended = "select l.aux_0, r.aux_0, astra_block_overlap(l.block, r.block) as match "
+                + "from postings l join postings r on l.block_id = r.block_id "
+                + "where l.aux_0 < r.aux_0 group by l.aux_0, r.aux_0"
+)
+public class AstraUDTFPostings extends GenericUDTF {
+
+    static final Log LOG = LogFactory.getLog(AstraUDTFPostings.class.getName());
+    static int BITSET_PARAM_INDEX = 0;
+    static int MAIN_COLUMN_COUNT = 3;
+    static int MAIN_PARAM_COUNT = 1;
+    static final String COUNTER_GROUP = "AstraUDTFPostings";
+
+    private BinaryObjectInspector bitsetOI = null;
+    private PrimitiveObjectInspector[] auxOI = null;
+    private Object[] row = null;
+    private MapredContext mapredContext = null;
+    private final AstraCounters counters = new AstraCounters(COUNTER_GROUP);
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] params) throws UDFArgumentException {
+        if (params.length < MAIN_PARAM_COUNT) {
+            throw new UDFArgumentException("AstraUDTFPostings() takes at least 1 argument");
+        }
+        if (params[BITSET_PARAM_INDEX].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveObjectInspector) params[BITSET_PARAM_INDEX]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            throw new UDFArgumentException("AstraUDTFPostings() takes a binary as the 1st parameter");
+        }
+
+        bitsetOI = (BinaryObjectInspector) params[BITSET_PARAM_INDEX];
+        auxOI = new PrimitiveObjectInspector[params.length - MAIN_PARAM_COUNT];
+        row = new Object[auxOI.length + MAIN_COLUMN_COUNT];
+        List<String> fieldNames = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT);
+        List<ObjectInspector> fieldOIs = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT);
+        fieldNames.add("block_id");
+        fieldNames.add("cardinality");
+        fieldNames.add("block");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+        for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
+            fieldNames.add("aux_" + (paramIndex - MAIN_PARAM_COUNT));
+            auxOI[auxIndex] = (PrimitiveObjectInspector) params[paramIndex];
+            fieldOIs.add(PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(auxOI[auxIndex].getTypeInfo()));
+        }
+
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        super.configure(mapredContext);
+        this.mapredContext = mapredContext;
+    }
+
+    @Override
+    public void process(Object[] params) throws HiveException {
+        byte[] bytes = bitsetOI.getPrimitiveJavaObject(params[BITSET_PARAM_INDEX]);
+        if (bytes == null)
+            return;
+
+        AstraBitmap bitmap;
+        byte hashId;
+        byte domainBits;
+        try {
+            bitmap = AstraBitsetCodec.toBitmap(bytes);
+            if (bitmap.isFolded()) {
+                throw new IOException("A folded bitset has no postings");
+            }
+            hashId = AstraBitsetCodec.hashId(bytes, bytes.length);
+            domainBits = (byte) AstraBitsetCodec.domainBits(bytes, bytes.length);
+        } catch (IOException e) {
+            // a bad blob costs its column's postings, not the task; the first one is logged, the rest only counted
+            if (counters.get(AstraCounters.Counter.CORRUPT_BLOBS) == 0) {
+                LOG.error("Skipping the postings of a corrupt or folded bitset, its column pairs are missing", e);
+            }
+            counters.increment(AstraCounters.Counter.CORRUPT_BLOBS);
+            return;
+        }
+        counters.add(AstraCounters.Counter.BLOB_BYTES_IN, bytes.length);
+        for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
+            row[MAIN_COLUMN_COUNT + auxIndex] = auxOI[auxIndex].getPrimitiveJavaObject(params[paramIndex]);
+        }
+
+        for (int i = 0; i < bitmap.containerCount(); i++) {
+            int key = bitmap.key(i);
+            char[] values = bitmap.array(i);
+            if (values != null) {
+                int count = bitmap.cardinality(i);
+                int from = 0;
+                while (from < count) {
+                    int block = values[from] >>> AstraBlocks.BLOCK_BITS;
+                    int to = from + 1;
+                    while (to < count && values[to] >>> AstraBlocks.BLOCK_BITS == block) {
+                        to++;
+                    }
+                    forward(AstraBlocks.blockId(key, block), to - from, AstraBlocks.arrayPayload(hashId, domainBits, values, from, to));
+                    from = to;
+                }
+            } else {
+                long[] words = bitmap.bitmap(i);
+                for (int block = 0; block < AstraBlocks.BLOCKS_PER_CONTAINER; block++) {
+                    int from = block * AstraBlocks.BLOCK_WORDS;
+                    int cardinality = 0;
+                    for (int w = from; w < from + AstraBlocks.BLOCK_WORDS; w++) {
+                        cardinality += Long.bitCount(words[w]);
+                    }
+                    if (cardinality > 0) {
+                        forward(AstraBlocks.blockId(key, block), cardinality, AstraBlocks.bitmapPayload(hashId, domainBits, words, from, cardinality));
+                    }
+                }
+            }
+        }
+    }
+
+    private void forward(int blockId, int cardinality, byte[] payload) throws HiveException {
+        row[0] = blockId;
+        row[1] = cardinality;
+        row[2] = payload;
+        forward(row);
+    }
+
+    @Override
+    public void close() throws HiveException {
+        LOG.info(counters);
+        counters.flush(mapredContext);
+    }
+}
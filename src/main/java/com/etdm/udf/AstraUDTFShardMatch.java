@@ -0,0 +1,142 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partial {@link AstraUDTFMatch} of one shard of two columns, see {@link AstraUDAFShardedBitset}.
+ * Every column of the output adds up over the shards, so one row is emitted per call even
+ * when nothing matches and a plain sum per column pair gives the totals. The sums need every
+ * shard on both sides of the join, which astra_bitset_shards provides by emitting the empty ones too.
+ */
+@Description(
+        name = "astra_shard_match",
+        value = "_FUNC_(shard_bitset_0, shard_bitset_1, aux...) - (shard_id, match, cardinality_0, cardinality_1, aux...) "
+                + "of two bitsets of the same shard",
+        extended = "select l.column_name, r.column_name, sum(m.match), sum(m.cardinality_0), sum(m.cardinality_1) "
+                + "from shards l join shards r on l.shard_id = r.shard_id "
+                + "lateral view astra_shard_match(l.bitset, r.bitset) m group by l.column_name, r.column_name"
+)
+public class AstraUDTFShardMatch extends GenericUDTF {
+
+    static final Log LOG = LogFactory.getLog(AstraUDTFShardMatch.class.getName());
+    static int LEFT_BITSET_PARAM_INDEX = 0;
+    static int RIGHT_BITSET_PARAM_INDEX = 1;
+    static int MAIN_COLUMN_COUNT = 4;
+    static int MAIN_PARAM_COUNT = 2;
+    static final String COUNTER_GROUP = "AstraUDTFShardMatch";
+
+    private BinaryObjectInspector leftOI = null;
+    private BinaryObjectInspector rightOI = null;
+    private PrimitiveObjectInspector[] auxOI = null;
+    private MapredContext mapredContext = null;
+    private final AstraCounters counters = new AstraCounters(COUNTER_GROUP);
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] params) throws UDFArgumentException {
+        if (params.length < MAIN_PARAM_COUNT) {
+            throw new UDFArgumentException("AstraUDTFShardMatch() takes at least 2 arguments");
+        }
+        for (int paramIndex = 0; paramIndex < MAIN_PARAM_COUNT; paramIndex++) {
+            if (params[paramIndex].getCategory() != ObjectInspector.Category.PRIMITIVE
+                    || ((PrimitiveObjectInspector) params[paramIndex]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+                throw new UDFArgumentException("AstraUDTFShardMatch() takes a binary as parameter " + (paramIndex + 1));
+            }
+        }
+
+        leftOI = (BinaryObjectInspector) params[LEFT_BITSET_PARAM_INDEX];
+        rightOI = (BinaryObjectInspector) params[RIGHT_BITSET_PARAM_INDEX];
+        auxOI = new PrimitiveObjectInspector[params.length - MAIN_PARAM_COUNT];
+        List<String> fieldNames = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT);
+        List<ObjectInspector> fieldOIs = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT);
+        fieldNames.add("shard_id");
+        fieldNames.add("match");
+        fieldNames.add("cardinality_0");
+        fieldNames.add("cardinality_1");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
+            fieldNames.add("aux_" + (paramIndex - MAIN_PARAM_COUNT));
+            auxOI[auxIndex] = (PrimitiveObjectInspector) params[paramIndex];
+            fieldOIs.add(PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(auxOI[auxIndex].getTypeInfo()));
+        }
+
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        super.configure(mapredContext);
+        this.mapredContext = mapredContext;
+    }
+
+    @Override
+    public void process(Object[] params) throws HiveException {
+        byte[] leftBytes = leftOI.getPrimitiveJavaObject(params[LEFT_BITSET_PARAM_INDEX]);
+        byte[] rightBytes = rightOI.getPrimitiveJavaObject(params[RIGHT_BITSET_PARAM_INDEX]);
+        if (leftBytes == null || rightBytes == null)
+            return;
+
+        long matched;
+        long leftCardinality;
+        long rightCardinality;
+        int shard;
+        try {
+            int leftBits = AstraBitsetCodec.shardBits(leftBytes, leftBytes.length);
+            int rightBits = AstraBitsetCodec.shardBits(rightBytes, rightBytes.length);
+            shard = AstraBitsetCodec.shard(leftBytes, leftBytes.length);
+            int rightShard = AstraBitsetCodec.shard(rightBytes, rightBytes.length);
+            if (leftBits == 0 || leftBits != rightBits || shard != rightShard) {
+                throw new HiveException("Bitsets of different shards: " + leftBits + "/" + shard
+                        + " and " + rightBits + "/" + rightShard + " (shard bits/shard id)");
+            }
+            AstraBitsetCodec.checkCompatible(leftBytes, leftBytes.length, rightBytes, rightBytes.length);
+            leftCardinality = AstraBitsetCodec.cardinality(leftBytes);
+            rightCardinality = AstraBitsetCodec.cardinality(rightBytes);
+            matched = leftCardinality == 0 || rightCardinality == 0 ? 0
+                    : AstraBitsetCodec.toBitmap(leftBytes).estimateAndCardinality(AstraBitsetCodec.toBitmap(rightBytes));
+        } catch (IOException e) {
+            // a corrupt blob costs its shard pairs, not the task; the first one is logged, the rest only counted
+            if (counters.get(AstraCounters.Counter.CORRUPT_BLOBS) == 0) {
+                LOG.error("Skipping shard pairs of a corrupt bitset, the sums of its column pairs are short", e);
+            }
+            counters.increment(AstraCounters.Counter.CORRUPT_BLOBS);
+            return;
+        }
+
+        Object[] row = new Object[auxOI.length + MAIN_COLUMN_COUNT];
+        int itemCount = 0;
+        row[itemCount++] = shard;
+        row[itemCount++] = matched;
+        row[itemCount++] = leftCardinality;
+        row[itemCount++] = rightCardinality;
+        for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
+            row[itemCount++] = auxOI[auxIndex].getPrimitiveJavaObject(params[paramIndex]);
+        }
+        this.forward(row);
+        counters.increment(AstraCounters.Counter.PAIRS_EMITTED);
+    }
+
+    @Override
+    public void close() throws HiveException {
+        LOG.info(counters);
+        counters.flush(mapredContext);
+    }
+}
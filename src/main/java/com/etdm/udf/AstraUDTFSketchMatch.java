@@ -0,0 +1,184 @@
+package com.etdm.udf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate {@link AstraUDTFMatch} over two sketches of the same kind, in time and memory
+ * bounded by the sketch size. Meant to screen candidate pairs before the exact bitset match.
+ * Two astra_minhash signatures give the intersection from their shared hashes, two astra_hll
+ * sketches give it by inclusion-exclusion, which is only usable for large overlaps.
+ * Counts are long, the columns sketched are typically beyond the int range of the exact matcher.
+ */
+@Description(
+        name = "astra_sketch_match",
+        value = "_FUNC_(sketch_0, sketch_1, aux...) - estimated (match, cardinality_0, cardinality_1, union_size, "
+                + "jaccard, containment_0, containment_1, aux...) of two astra_minhash or two astra_hll sketches"
+)
+public class AstraUDTFSketchMatch extends GenericUDTF {
+
+    static final Log LOG = LogFactory.getLog(AstraUDTFSketchMatch.class.getName());
+    static int LEFT_SKETCH_PARAM_INDEX = 0;
+    static int RIGHT_SKETCH_PARAM_INDEX = 1;
+    static int MAIN_COLUMN_COUNT = 7;
+    static int MAIN_PARAM_COUNT = 2;
+    static final String COUNTER_GROUP = "AstraUDTFSketchMatch";
+
+    private BinaryObjectInspector leftOI = null;
+    private BinaryObjectInspector rightOI = null;
+    private PrimitiveObjectInspector[] auxOI = null;
+    private MapredContext mapredContext = null;
+    private final AstraCounters counters = new AstraCounters(COUNTER_GROUP);
+
+    private double leftCardinality;
+    private double rightCardinality;
+    private double matched;
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] params) throws UDFArgumentException {
+        if (params.length < MAIN_PARAM_COUNT) {
+            throw new UDFArgumentException("AstraUDTFSketchMatch() takes at least 2 arguments");
+        }
+        for (int paramIndex = 0; paramIndex < MAIN_PARAM_COUNT; paramIndex++) {
+            if (params[paramIndex].getCategory() != ObjectInspector.Category.PRIMITIVE
+                    || ((PrimitiveObjectInspector) params[paramIndex]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+                throw new UDFArgumentException("AstraUDTFSketchMatch() takes a binary as parameter " + (paramIndex + 1));
+            }
+        }
+
+        leftOI = (BinaryObjectInspector) params[LEFT_SKETCH_PARAM_INDEX];
+        rightOI = (BinaryObjectInspector) params[RIGHT_SKETCH_PARAM_INDEX];
+        auxOI = new PrimitiveObjectInspector[params.length - MAIN_PARAM_COUNT];
+        List<String> fieldNames = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT);
+        List<ObjectInspector> fieldOIs = new ArrayList<>(params.length - MAIN_PARAM_COUNT + MAIN_COLUMN_COUNT);
+        fieldNames.add("match");
+        fieldNames.add("cardinality_0");
+        fieldNames.add("cardinality_1");
+        fieldNames.add("union_size");
+        fieldNames.add("jaccard");
+        fieldNames.add("containment_0");
+        fieldNames.add("containment_1");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
+            fieldNames.add("aux_" + (paramIndex - MAIN_PARAM_COUNT));
+            auxOI[auxIndex] = (PrimitiveObjectInspector) params[paramIndex];
+            fieldOIs.add(PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(auxOI[auxIndex].getTypeInfo()));
+        }
+
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        super.configure(mapredContext);
+        this.mapredContext = mapredContext;
+    }
+
+    @Override
+    public void process(Object[] params) throws HiveException {
+        try {
+            byte[] leftBytes = leftOI.getPrimitiveJavaObject(params[LEFT_SKETCH_PARAM_INDEX]);
+            byte[] rightBytes = rightOI.getPrimitiveJavaObject(params[RIGHT_SKETCH_PARAM_INDEX]);
+            if (leftBytes == null || rightBytes == null)
+                return;
+
+            counters.increment(AstraCounters.Counter.PAIRS_EVALUATED);
+            String incompatible;
+            if (AstraBottomK.isSketch(leftBytes, leftBytes.length) && AstraBottomK.isSketch(rightBytes, rightBytes.length)) {
+                incompatible = estimateBottomK(AstraBottomK.fromBytes(leftBytes, leftBytes.length), AstraBottomK.fromBytes(rightBytes, rightBytes.length));
+            } else if (AstraHyperLogLog.isSketch(leftBytes, leftBytes.length) && AstraHyperLogLog.isSketch(rightBytes, rightBytes.length)) {
+                incompatible = estimateHyperLogLog(AstraHyperLogLog.fromBytes(leftBytes, leftBytes.length), AstraHyperLogLog.fromBytes(rightBytes, rightBytes.length));
+            } else {
+                incompatible = "Two astra_minhash or two astra_hll sketches expected";
+            }
+            if (incompatible != null) {
+                if (counters.get(AstraCounters.Counter.INCOMPATIBLE_PAIRS) == 0) {
+                    LOG.warn("Skipping pairs of incompatible sketches: " + incompatible);
+                }
+                counters.increment(AstraCounters.Counter.INCOMPATIBLE_PAIRS);
+                return;
+            }
+
+            long match = Math.round(matched);
+            if (match > 0) {
+                long left = Math.max(match, Math.round(leftCardinality));
+                long right = Math.max(match, Math.round(rightCardinality));
+                long union = left + right - match;
+                Object[] row = new Object[auxOI.length + MAIN_COLUMN_COUNT];
+                int itemCount = 0;
+                row[itemCount++] = match;
+                row[itemCount++] = left;
+                row[itemCount++] = right;
+                row[itemCount++] = union;
+                row[itemCount++] = (double) match / union;
+                row[itemCount++] = (double) match / left;
+                row[itemCount++] = (double) match / right;
+
+                for (int paramIndex = MAIN_PARAM_COUNT, auxIndex = 0; paramIndex < params.length; paramIndex++, auxIndex++) {
+                    row[itemCount++] = auxOI[auxIndex].getPrimitiveJavaObject(params[paramIndex]);
+                }
+
+                this.forward(row);
+                counters.increment(AstraCounters.Counter.PAIRS_EMITTED);
+            }
+        } catch (IOException e) {
+            // a corrupt sketch costs its pairs, not the task; the first one is logged, the rest only counted
+            if (counters.get(AstraCounters.Counter.CORRUPT_BLOBS) == 0) {
+                LOG.error("Skipping pairs of a corrupt sketch", e);
+            }
+            counters.increment(AstraCounters.Counter.CORRUPT_BLOBS);
+        }
+    }
+
+    /**
+     * Estimates into the fields, returns why the sketches cannot be compared or null.
+     */
+    private String estimateBottomK(AstraBottomK left, AstraBottomK right) {
+        if (left.hashId() != right.hashId()) {
+            return "Sketches of hash functions " + left.hashId() + " and " + right.hashId();
+        }
+        leftCardinality = left.estimate();
+        rightCardinality = right.estimate();
+        matched = Math.min(AstraBottomK.estimateIntersection(left, right), Math.min(leftCardinality, rightCardinality));
+        return null;
+    }
+
+    private String estimateHyperLogLog(AstraHyperLogLog left, AstraHyperLogLog right) throws IOException {
+        if (left.hashId() != right.hashId()) {
+            return "Sketches of hash functions " + left.hashId() + " and " + right.hashId();
+        }
+        leftCardinality = left.estimate();
+        rightCardinality = right.estimate();
+        AstraHyperLogLog union = left.copy();
+        union.merge(right);
+        matched = Math.max(0, Math.min(leftCardinality + rightCardinality - union.estimate(), Math.min(leftCardinality, rightCardinality)));
+        return null;
+    }
+
+    @Override
+    public void close() throws HiveException {
+        LOG.info(counters);
+        counters.flush(mapredContext);
+    }
+}
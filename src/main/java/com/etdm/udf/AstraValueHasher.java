@@ -0,0 +1,577 @@
+package com.etdm.udf;
+
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import vendor.google.common.hash.HashFunction;
+import vendor.google.common.hash.Hashing;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Hashes values through their canonical text, the string Hive prints for the value,
+ * so that an INT 5 and a STRING "5" land on the same bit.
+ * The text is rendered as UTF-16LE code units into a reusable scratch buffer and hashed
+ * with murmur3_32, which gives exactly {@code Hashing.murmur3_32().hashUnencodedChars(text)}
+ * without materializing a String. The sketches hash the same text with murmur3_128 and take
+ * its first 64 bits, {@code Hashing.murmur3_128().hashUnencodedChars(text).asLong()}.
+ * Bitsets of high-cardinality columns can take a 64-bit hash cut to a wider domain, see {@link #of(String)}.
+ * Not thread-safe, one instance per evaluator.
+ */
+public final class AstraValueHasher {
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+    private static final long C1_128 = 0x87c37b91114253d5L;
+    private static final long C2_128 = 0x4cf5ad432745937fL;
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0d);
+    private static final long MILLIS_PER_DAY = 86400000L;
+    /**
+     * Day number of 1582-10-15, the first Gregorian day of java.sql.Date's calendar.
+     */
+    private static final long GREGORIAN_CUTOVER_DAY = -141427L;
+    private static final HashFunction FARMHASH_64 = Hashing.farmHashFingerprint64();
+
+    private final byte hashId;
+    private final int domainBits;
+    private final long domainMask;
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final char[] digits = new char[20];
+    private byte[] scratch = new byte[64];
+    private int length;
+    private boolean text;
+
+    public AstraValueHasher() {
+        this(AstraBitsetCodec.HASH_MURMUR3_32);
+    }
+
+    /**
+     * @param hashId {@link AstraBitsetCodec#HASH_MURMUR3_32}, hashes are ints widened to long,
+     *               {@link AstraBitsetCodec#HASH_MURMUR3_128} or {@link AstraBitsetCodec#HASH_FARMHASH_64}
+     */
+    public AstraValueHasher(byte hashId) {
+        this(hashId, hashId == AstraBitsetCodec.HASH_MURMUR3_32 ? AstraBitsetCodec.DOMAIN_BITS_31 : AstraBitsetCodec.MAX_DOMAIN_BITS);
+    }
+
+    /**
+     * @param domainBits width of the bit positions, 31 for murmur3_32 and
+     *                   31..{@link AstraBitsetCodec#MAX_DOMAIN_BITS} for the 64-bit hashes
+     */
+    public AstraValueHasher(byte hashId, int domainBits) {
+        if (hashId != AstraBitsetCodec.HASH_MURMUR3_32 && hashId != AstraBitsetCodec.HASH_MURMUR3_128
+                && hashId != AstraBitsetCodec.HASH_FARMHASH_64) {
+            throw new IllegalArgumentException("Unknown hash function id " + hashId);
+        }
+        int maxBits = hashId == AstraBitsetCodec.HASH_MURMUR3_32 ? AstraBitsetCodec.DOMAIN_BITS_31 : AstraBitsetCodec.MAX_DOMAIN_BITS;
+        if (domainBits < AstraBitsetCodec.DOMAIN_BITS_31 || domainBits > maxBits) {
+            throw new IllegalArgumentException("Domain width must be within " + AstraBitsetCodec.DOMAIN_BITS_31
+                    + ".." + maxBits + ": " + domainBits);
+        }
+        this.hashId = hashId;
+        this.domainBits = domainBits;
+        this.domainMask = (1L << domainBits) - 1;
+    }
+
+    /**
+     * Hasher of a "function[:bits]" spec: murmur3_32 (31 bits only), murmur3_128 or farmhash64,
+     * the 64-bit ones {@link AstraBitsetCodec#MAX_DOMAIN_BITS} wide unless bits is given.
+     */
+    public static AstraValueHasher of(String spec) {
+        int colon = spec.indexOf(':');
+        String name = (colon < 0 ? spec : spec.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+        byte hashId;
+        switch (name) {
+            case "murmur3_32":
+                hashId = AstraBitsetCodec.HASH_MURMUR3_32;
+                break;
+            case "murmur3_128":
+                hashId = AstraBitsetCodec.HASH_MURMUR3_128;
+                break;
+            case "farmhash64":
+                hashId = AstraBitsetCodec.HASH_FARMHASH_64;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown hash function " + name
+                        + ", one of murmur3_32, murmur3_128, farmhash64 expected");
+        }
+        if (colon < 0) {
+            return new AstraValueHasher(hashId);
+        }
+        try {
+            return new AstraValueHasher(hashId, Integer.parseInt(spec.substring(colon + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Domain width is not a number: " + spec);
+        }
+    }
+
+    public byte hashId() {
+        return hashId;
+    }
+
+    public int domainBits() {
+        return domainBits;
+    }
+
+    /**
+     * Bit position of a hash. murmur3_32 keeps the position it always had, a 64-bit hash
+     * keeps its low domainBits bits.
+     */
+    public long position(long hash) {
+        return hashId == AstraBitsetCodec.HASH_MURMUR3_32 ? AstraUDAFBitset.position(hash) : hash & domainMask;
+    }
+
+    public long hashBoolean(boolean value) {
+        length = 0;
+        appendAscii(value ? "true" : "false");
+        return hashScratch();
+    }
+
+    public long hashLong(long value) {
+        length = 0;
+        appendLong(value);
+        return hashScratch();
+    }
+
+    public long hashFloat(float value) {
+        if (value == (long) value && Math.abs(value) < 1e7f && Float.floatToRawIntBits(value) != Float.floatToRawIntBits(-0.0f)) {
+            return hashIntegralDouble((long) value);
+        }
+        return hashString(Float.toString(value));
+    }
+
+    public long hashDouble(double value) {
+        if (value == (long) value && Math.abs(value) < 1e7d && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO_BITS) {
+            return hashIntegralDouble((long) value);
+        }
+        return hashString(Double.toString(value));
+    }
+
+    /**
+     * Plain notation of a normalized HiveDecimal: no trailing zeros after the point and "0" for zero.
+     * Values with an unscaled part wider than a long fall back to {@code HiveDecimal.toString()}.
+     */
+    public long hashDecimal(HiveDecimalWritable value) {
+        byte[] storage = value.getInternalStorage();
+        int scale = value.getScale();
+        if (storage.length > 8) {
+            return hashString(value.getHiveDecimal().toString());
+        }
+        long unscaled = storage.length == 0 ? 0 : storage[0];
+        for (int i = 1; i < storage.length; i++) {
+            unscaled = (unscaled << 8) | (storage[i] & 0xFF);
+        }
+        if (unscaled == Long.MIN_VALUE) {
+            return hashString(value.getHiveDecimal().toString());
+        }
+        length = 0;
+        appendDecimal(unscaled, scale);
+        return hashScratch();
+    }
+
+    /**
+     * yyyy-MM-dd of a day number, {@code DateWritable.getDays()}.
+     */
+    public long hashDate(long epochDay) {
+        length = 0;
+        appendDate(epochDay);
+        return hashScratch();
+    }
+
+    /**
+     * yyyy-MM-dd HH:mm:ss[.fffffffff] in the local time zone, trailing zeros of the fraction dropped,
+     * the way {@code TimestampWritable.toString()} prints it.
+     */
+    public long hashTimestamp(long epochSeconds, int nanos) {
+        long localMillis = epochSeconds * 1000L + timeZone.getOffset(epochSeconds * 1000L);
+        long epochDay = Math.floorDiv(localMillis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(localMillis, MILLIS_PER_DAY) / 1000L);
+        length = 0;
+        appendDate(epochDay);
+        appendChar(' ');
+        appendTwoDigits(secondOfDay / 3600);
+        appendChar(':');
+        appendTwoDigits(secondOfDay / 60 % 60);
+        appendChar(':');
+        appendTwoDigits(secondOfDay % 60);
+        if (nanos > 0) {
+            appendChar('.');
+            int width = 9;
+            while (nanos % 10 == 0) {
+                nanos /= 10;
+                width--;
+            }
+            appendPadded(nanos, width);
+        }
+        return hashScratch();
+    }
+
+    /**
+     * Hashes UTF-8 text in place, {@code Text.getBytes()} of STRING and VARCHAR.
+     */
+    public long hashUtf8(byte[] bytes, int offset, int byteLength) {
+        length = 0;
+        appendUtf8(bytes, offset, byteLength);
+        return hashScratch();
+    }
+
+    /**
+     * CHAR compares without its trailing pad spaces.
+     */
+    public long hashUtf8Stripped(byte[] bytes, int offset, int byteLength) {
+        while (byteLength > 0 && bytes[offset + byteLength - 1] == ' ') {
+            byteLength--;
+        }
+        return hashUtf8(bytes, offset, byteLength);
+    }
+
+    /**
+     * BINARY has no text form, its raw bytes are hashed.
+     */
+    public long hashBinary(byte[] bytes, int offset, int byteLength) {
+        text = false;
+        return hash(bytes, offset, byteLength);
+    }
+
+    public long hashString(String value) {
+        length = 0;
+        ensureCapacity(2 * value.length());
+        for (int i = 0; i < value.length(); i++) {
+            appendChar(value.charAt(i));
+        }
+        return hashScratch();
+    }
+
+    private long hashIntegralDouble(long value) {
+        length = 0;
+        appendLong(value);
+        appendAscii(".0");
+        return hashScratch();
+    }
+
+    /**
+     * Length in chars of the canonical text last hashed, -1 when the last value was a BINARY.
+     */
+    public int textLength() {
+        return text ? length >>> 1 : -1;
+    }
+
+    /**
+     * Compares the canonical text last hashed with a string, in {@link String#compareTo} order.
+     */
+    public int compareText(String other) {
+        int count = Math.min(length >>> 1, other.length());
+        for (int i = 0; i < count; i++) {
+            char c = (char) ((scratch[2 * i] & 0xFF) | (scratch[2 * i + 1] & 0xFF) << 8);
+            if (c != other.charAt(i)) {
+                return c - other.charAt(i);
+            }
+        }
+        return (length >>> 1) - other.length();
+    }
+
+    /**
+     * Canonical text last hashed.
+     */
+    public String text() {
+        char[] chars = new char[length >>> 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ((scratch[2 * i] & 0xFF) | (scratch[2 * i + 1] & 0xFF) << 8);
+        }
+        return new String(chars);
+    }
+
+    private long hashScratch() {
+        text = true;
+        return hash(scratch, 0, length);
+    }
+
+    private long hash(byte[] data, int offset, int len) {
+        switch (hashId) {
+            case AstraBitsetCodec.HASH_MURMUR3_32:
+                return murmur3(data, offset, len);
+            case AstraBitsetCodec.HASH_MURMUR3_128:
+                return murmur3x64(data, offset, len);
+            default:
+                return FARMHASH_64.hashBytes(data, offset, len).asLong();
+        }
+    }
+
+    private void appendDecimal(long unscaled, int scale) {
+        if (unscaled == 0) {
+            appendChar('0');
+            return;
+        }
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        if (unscaled < 0) {
+            appendChar('-');
+            unscaled = -unscaled;
+        }
+        int count = toDigits(unscaled);
+        if (scale <= 0) {
+            appendDigits(0, count);
+            for (; scale < 0; scale++) {
+                appendChar('0');
+            }
+        } else if (count > scale) {
+            appendDigits(0, count - scale);
+            appendChar('.');
+            appendDigits(count - scale, count);
+        } else {
+            appendAscii("0.");
+            for (int i = count; i < scale; i++) {
+                appendChar('0');
+            }
+            appendDigits(0, count);
+        }
+    }
+
+    /**
+     * Civil date of a day number, four digit year. Days before the Gregorian cutover are Julian
+     * calendar dates, as Hive prints them through java.sql.Date.
+     */
+    private void appendDate(long epochDay) {
+        long year;
+        int month;
+        int day;
+        if (epochDay < GREGORIAN_CUTOVER_DAY) {
+            long c = epochDay + 2440588 + 32082;
+            long d = (4 * c + 3) / 1461;
+            long e = c - 1461 * d / 4;
+            long m = (5 * e + 2) / 153;
+            day = (int) (e - (153 * m + 2) / 5 + 1);
+            month = (int) (m + 3 - 12 * (m / 10));
+            year = d - 4800 + m / 10;
+        } else {
+            long z = epochDay + 719468;
+            long era = Math.floorDiv(z, 146097);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long mp = (5 * dayOfYear + 2) / 153;
+            day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+            month = (int) (mp < 10 ? mp + 3 : mp - 9);
+            year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        }
+        if (year < 0) {
+            appendChar('-');
+            year = -year;
+        }
+        appendPadded(year, 4);
+        appendChar('-');
+        appendTwoDigits(month);
+        appendChar('-');
+        appendTwoDigits(day);
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            appendChar('-');
+            value = -value;
+        }
+        appendDigits(0, toDigits(value));
+    }
+
+    private void appendPadded(long value, int width) {
+        int count = toDigits(value);
+        for (int i = count; i < width; i++) {
+            appendChar('0');
+        }
+        appendDigits(0, count);
+    }
+
+    private void appendTwoDigits(int value) {
+        appendChar((char) ('0' + value / 10));
+        appendChar((char) ('0' + value % 10));
+    }
+
+    /**
+     * Renders a non-negative value into {@link #digits}, returns the digit count.
+     */
+    private int toDigits(long value) {
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            char c = digits[i];
+            digits[i] = digits[j];
+            digits[j] = c;
+        }
+        return count;
+    }
+
+    private void appendDigits(int from, int to) {
+        for (int i = from; i < to; i++) {
+            appendChar(digits[i]);
+        }
+    }
+
+    private void appendAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            appendChar(text.charAt(i));
+        }
+    }
+
+    private void appendUtf8(byte[] bytes, int offset, int byteLength) {
+        ensureCapacity(2 * byteLength);
+        int end = offset + byteLength;
+        int i = offset;
+        while (i < end) {
+            int b = bytes[i];
+            if (b >= 0) {
+                putChar((char) b);
+                i++;
+            } else if ((b & 0xE0) == 0xC0 && i + 1 < end && isContinuation(bytes[i + 1])) {
+                putChar((char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F)));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0 && i + 2 < end && isContinuation(bytes[i + 1]) && isContinuation(bytes[i + 2])) {
+                putChar((char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F)));
+                i += 3;
+            } else if ((b & 0xF8) == 0xF0 && i + 3 < end && isContinuation(bytes[i + 1])
+                    && isContinuation(bytes[i + 2]) && isContinuation(bytes[i + 3])) {
+                int codePoint = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12)
+                        | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+                putChar(Character.highSurrogate(codePoint));
+                putChar(Character.lowSurrogate(codePoint));
+                i += 4;
+            } else {
+                putChar('\uFFFD');
+                i++;
+            }
+        }
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private void appendChar(char c) {
+        ensureCapacity(2);
+        putChar(c);
+    }
+
+    private void putChar(char c) {
+        scratch[length] = (byte) c;
+        scratch[length + 1] = (byte) (c >>> 8);
+        length += 2;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > scratch.length) {
+            byte[] grown = new byte[Math.max(scratch.length * 2, length + extra)];
+            System.arraycopy(scratch, 0, grown, 0, length);
+            scratch = grown;
+        }
+    }
+
+    static int murmur3(byte[] data, int offset, int len) {
+        int h1 = 0;
+        int i = 0;
+        for (; i + 4 <= len; i += 4) {
+            int k1 = (data[offset + i] & 0xFF)
+                    | (data[offset + i + 1] & 0xFF) << 8
+                    | (data[offset + i + 2] & 0xFF) << 16
+                    | (data[offset + i + 3] & 0xFF) << 24;
+            h1 ^= mixK1(k1);
+            h1 = Integer.rotateLeft(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        int k1 = 0;
+        switch (len - i) {
+            case 3:
+                k1 ^= (data[offset + i + 2] & 0xFF) << 16;
+            case 2:
+                k1 ^= (data[offset + i + 1] & 0xFF) << 8;
+            case 1:
+                k1 ^= data[offset + i] & 0xFF;
+                h1 ^= mixK1(k1);
+            default:
+        }
+        h1 ^= len;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= C1;
+        k1 = Integer.rotateLeft(k1, 15);
+        k1 *= C2;
+        return k1;
+    }
+
+    /**
+     * First 64 bits of murmur3_x64_128 with seed 0.
+     */
+    static long murmur3x64(byte[] data, int offset, int len) {
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        for (; i + 16 <= len; i += 16) {
+            long k1 = littleEndian(data, offset + i, 8);
+            long k2 = littleEndian(data, offset + i + 8, 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = len - i;
+        if (tail > 8) {
+            h2 ^= mixK2(littleEndian(data, offset + i + 8, tail - 8));
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(littleEndian(data, offset + i, Math.min(tail, 8)));
+        }
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return h1 + h2;
+    }
+
+    private static long littleEndian(byte[] data, int offset, int count) {
+        long value = 0;
+        for (int b = count - 1; b >= 0; b--) {
+            value = (value << 8) | (data[offset + b] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1_128;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2_128;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2_128;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1_128;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
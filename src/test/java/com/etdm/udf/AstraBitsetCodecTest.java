@@ -0,0 +1,244 @@
+package com.etdm.udf;
+
+import com.zaxxer.sparsebits.SparseBitSet;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Blobs written by {@link AstraBitsetCodec.Writer} and by the earlier releases decode to the bits they were written from.
+ */
+public class AstraBitsetCodecTest extends TestCase {
+
+    private final AstraBitsetCodec.Writer writer = new AstraBitsetCodec.Writer();
+
+    private static AstraBitmap bitmap(Iterable<Long> positions) {
+        AstraBitmap bitmap = new AstraBitmap();
+        for (long position : positions) {
+            bitmap.add(position);
+        }
+        return bitmap;
+    }
+
+    private static void assertBits(TreeSet<Long> expected, AstraBitmap actual) {
+        assertEquals(expected.size(), actual.cardinality());
+        for (long position : expected) {
+            assertTrue("position " + position, actual.contains(position));
+        }
+    }
+
+    private byte[] roundTrip(TreeSet<Long> positions, byte hashId, byte domainBits) throws IOException {
+        byte[] blob = writer.write(bitmap(positions), hashId, domainBits);
+        assertFalse(AstraBitsetCodec.isLegacy(blob, blob.length));
+        assertEquals(hashId, AstraBitsetCodec.hashId(blob, blob.length));
+        assertEquals(domainBits, AstraBitsetCodec.domainBits(blob, blob.length));
+        assertEquals(positions.size(), AstraBitsetCodec.cardinality(blob));
+        assertBits(positions, AstraBitsetCodec.toBitmap(blob));
+        return blob;
+    }
+
+    private static byte containerType(byte[] blob) {
+        return blob[AstraBitsetCodec.HEADER_SIZE + 4];
+    }
+
+    public void testEmpty() throws IOException {
+        byte[] blob = roundTrip(new TreeSet<Long>(), AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        assertEquals(AstraBitsetCodec.HEADER_SIZE, blob.length);
+    }
+
+    public void testArrayContainer() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        for (long i = 0; i < 1000; i++) {
+            positions.add(7 * 65536L + 61 * i);
+        }
+        byte[] blob = roundTrip(positions, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        assertEquals(AstraBitsetCodec.CONTAINER_ARRAY, containerType(blob));
+    }
+
+    public void testBitmapContainer() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        Random random = new Random(1);
+        while (positions.size() < 20000) {
+            positions.add(65536L * 3 + random.nextInt(65536));
+        }
+        byte[] blob = roundTrip(positions, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        assertEquals(AstraBitsetCodec.CONTAINER_BITMAP, containerType(blob));
+    }
+
+    public void testRunContainer() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        for (long i = 100; i < 2100; i++) {
+            positions.add(i);
+        }
+        for (long i = 40000; i < 41000; i++) {
+            positions.add(i);
+        }
+        byte[] blob = roundTrip(positions, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        assertEquals(AstraBitsetCodec.CONTAINER_RUN, containerType(blob));
+    }
+
+    public void testMixedContainers() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 200000; i++) {
+            positions.add((long) random.nextInt(1 << 22));
+        }
+        for (int i = 0; i < 5000; i++) {
+            positions.add((long) random.nextInt(Integer.MAX_VALUE));
+        }
+        for (long i = Integer.MAX_VALUE - 3000L; i < Integer.MAX_VALUE; i++) {
+            positions.add(i);
+        }
+        roundTrip(positions, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+    }
+
+    public void testWideDomain() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            positions.add(random.nextLong() & ((1L << AstraBitsetCodec.MAX_DOMAIN_BITS) - 1));
+        }
+        positions.add((1L << AstraBitsetCodec.MAX_DOMAIN_BITS) - 1);
+        roundTrip(positions, AstraBitsetCodec.HASH_FARMHASH_64, AstraBitsetCodec.MAX_DOMAIN_BITS);
+    }
+
+    public void testFolded() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        Random random = new Random(4);
+        for (int i = 0; i < 50000; i++) {
+            positions.add((long) random.nextInt(Integer.MAX_VALUE));
+        }
+        AstraBitmap folded = bitmap(positions);
+        folded.fold(20);
+        byte[] blob = writer.write(folded, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        assertTrue(AstraBitsetCodec.isFolded(blob, blob.length));
+        assertEquals(20, AstraBitsetCodec.domainBits(blob, blob.length));
+        assertEquals(folded.distinctCount(), AstraBitsetCodec.cardinality(blob));
+
+        AstraBitmap decoded = AstraBitsetCodec.toBitmap(blob);
+        assertTrue(decoded.isFolded());
+        assertEquals(20, decoded.foldBits());
+        TreeSet<Long> low = new TreeSet<>();
+        for (long position : positions) {
+            low.add(position & ((1L << 20) - 1));
+        }
+        assertBits(low, decoded);
+    }
+
+    public void testOrIntoFoldsToNarrowerBlob() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        for (long i = 0; i < 1000; i++) {
+            positions.add(i * 1000003L);
+        }
+        AstraBitmap folded = bitmap(positions);
+        folded.fold(18);
+        AstraBitmap target = bitmap(positions);
+        byte[] blob = writer.write(folded, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        AstraBitsetCodec.orInto(target, blob, blob.length);
+        assertEquals(18, target.foldBits());
+        assertEquals(folded.cardinality(), target.cardinality());
+    }
+
+    public void testLegacy() throws IOException {
+        TreeSet<Long> positions = new TreeSet<>();
+        SparseBitSet legacy = new SparseBitSet();
+        Random random = new Random(5);
+        for (int i = 0; i < 10000; i++) {
+            int position = random.nextInt(Integer.MAX_VALUE);
+            positions.add((long) position);
+            legacy.set(position);
+        }
+        for (int position : new int[]{0, 1, 65535, 65536, Integer.MAX_VALUE - 1}) {
+            positions.add((long) position);
+            legacy.set(position);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(legacy);
+        }
+        byte[] blob = bytes.toByteArray();
+        assertTrue(AstraBitsetCodec.isLegacy(blob, blob.length));
+        assertEquals(AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.hashId(blob, blob.length));
+        assertEquals(AstraBitsetCodec.DOMAIN_BITS_31, AstraBitsetCodec.domainBits(blob, blob.length));
+        assertEquals(positions.size(), AstraBitsetCodec.cardinality(blob));
+        AstraBitmap decoded = AstraBitsetCodec.toBitmap(blob);
+        assertBits(positions, decoded);
+
+        byte[] rewritten = writer.write(decoded, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        assertBits(positions, AstraBitsetCodec.toBitmap(rewritten));
+    }
+
+    public void testIntersectorMatchesDecodedBitmaps() throws IOException {
+        Random random = new Random(6);
+        AstraBitsetCodec.Intersector intersector = new AstraBitsetCodec.Intersector();
+        for (int t = 0; t < 20; t++) {
+            AstraBitmap left = new AstraBitmap();
+            AstraBitmap right = new AstraBitmap();
+            int range = t % 2 == 0 ? 1 << 20 : Integer.MAX_VALUE;
+            for (int i = 0; i < 30000; i++) {
+                left.add(random.nextInt(range));
+                right.add(random.nextInt(range));
+            }
+            for (int i = 0; i < 3000; i++) {
+                left.add(i);
+                right.add(i + 1500);
+            }
+            byte[] a = writer.write(left, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+            byte[] b = writer.write(right, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+            assertEquals(left.andCardinality(right),
+                    intersector.andCardinality(AstraBitsetCodec.open(ByteBuffer.wrap(a)), AstraBitsetCodec.open(ByteBuffer.wrap(b))));
+        }
+    }
+
+    public void testIncompatibleBlobs() throws IOException {
+        AstraBitmap bits = bitmap(Arrays.asList(1L, 2L, 3L));
+        byte[] murmur = writer.write(bits, AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        byte[] farm = writer.write(bits, AstraBitsetCodec.HASH_FARMHASH_64, AstraBitsetCodec.DOMAIN_BITS_31);
+        byte[] wide = writer.write(bits, AstraBitsetCodec.HASH_FARMHASH_64, AstraBitsetCodec.MAX_DOMAIN_BITS);
+        AstraBitsetCodec.checkCompatible(murmur, murmur.length, murmur, murmur.length);
+        try {
+            AstraBitsetCodec.checkCompatible(murmur, murmur.length, farm, farm.length);
+            fail("murmur3_32 and farmhash64 bitsets compared");
+        } catch (IOException expected) {
+        }
+        try {
+            AstraBitsetCodec.checkCompatible(farm, farm.length, wide, wide.length);
+            fail("31 and 40 bit domains compared");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testEmptyBlobFixesNoDomain() throws IOException {
+        byte[] empty = writer.write(new AstraBitmap(), AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        byte[] farm = writer.write(bitmap(Arrays.asList(1L, 2L, 3L)), AstraBitsetCodec.HASH_FARMHASH_64, (byte) 36);
+        AstraBitsetCodec.checkCompatible(empty, empty.length, farm, farm.length);
+        AstraBitsetCodec.Domain domain = new AstraBitsetCodec.Domain();
+        domain.check(AstraBitsetCodec.open(ByteBuffer.wrap(empty)));
+        domain.check(AstraBitsetCodec.open(ByteBuffer.wrap(farm)));
+        assertEquals(AstraBitsetCodec.HASH_FARMHASH_64, domain.hashId());
+        assertEquals(36, domain.domainBits());
+    }
+
+    public void testCorruptBlob() {
+        byte[] blob = writer.write(bitmap(new TreeSet<>(Arrays.asList(1L, 2L, 3L))),
+                AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.DOMAIN_BITS_31);
+        byte[] badMagic = blob.clone();
+        badMagic[0] = 0;
+        byte[] badVersion = blob.clone();
+        badVersion[2] = 99;
+        byte[] truncated = Arrays.copyOf(blob, AstraBitsetCodec.HEADER_SIZE - 1);
+        for (byte[] corrupt : new byte[][]{badMagic, badVersion, truncated}) {
+            try {
+                AstraBitsetCodec.toBitmap(corrupt);
+                fail("corrupt blob decoded");
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
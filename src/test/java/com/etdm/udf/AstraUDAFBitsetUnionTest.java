@@ -0,0 +1,77 @@
+package com.etdm.udf;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+
+/**
+ * astra_bitset_union of stored blobs, the empty ones included.
+ */
+public class AstraUDAFBitsetUnionTest extends TestCase {
+
+    /**
+     * Bitset of a final aggregate that got no partials: no domain and no hasher.
+     */
+    static BytesWritable emptyBlob() throws HiveException {
+        AstraUDAFBitset.BitSetEvaluator evaluator = new AstraUDAFBitset.BitSetEvaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.FINAL, new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.writableBinaryObjectInspector});
+        GenericUDAFEvaluator.AggregationBuffer buf = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buf);
+        return (BytesWritable) evaluator.terminate(buf);
+    }
+
+    static BytesWritable farmBlob(int count) throws HiveException {
+        AstraUDAFBitset.BitSetEvaluator evaluator = new AstraUDAFBitset.BitSetEvaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.COMPLETE, new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                        TypeInfoFactory.stringTypeInfo, new Text("farmhash64:36"))});
+        GenericUDAFEvaluator.AggregationBuffer buf = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buf);
+        for (int i = 0; i < count; i++) {
+            evaluator.iterate(buf, new Object[]{"value " + i, "farmhash64:36"});
+        }
+        return (BytesWritable) evaluator.terminate(buf);
+    }
+
+    static void assertFarm(int count, BytesWritable blob) throws IOException {
+        assertEquals(AstraBitsetCodec.HASH_FARMHASH_64, AstraBitsetCodec.hashId(blob.getBytes(), blob.getLength()));
+        assertEquals(36, AstraBitsetCodec.domainBits(blob.getBytes(), blob.getLength()));
+        assertEquals(count, AstraBitsetCodec.cardinality(blob.getBytes(), blob.getLength()));
+    }
+
+    private static BytesWritable union(BytesWritable... blobs) throws HiveException {
+        AstraUDAFBitsetUnion.BitSetUnionEvaluator evaluator = new AstraUDAFBitsetUnion.BitSetUnionEvaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.COMPLETE, new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.writableBinaryObjectInspector});
+        GenericUDAFEvaluator.AggregationBuffer buf = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buf);
+        for (BytesWritable blob : blobs) {
+            evaluator.iterate(buf, new Object[]{blob});
+        }
+        return (BytesWritable) evaluator.terminate(buf);
+    }
+
+    public void testEmptyAndFarmhashBlobs() throws HiveException, IOException {
+        BytesWritable empty = emptyBlob();
+        assertEquals(0, AstraBitsetCodec.cardinality(empty.getBytes(), empty.getLength()));
+        BytesWritable farm = farmBlob(1000);
+        assertFarm(1000, farm);
+        assertFarm(1000, union(empty, farm));
+        assertFarm(1000, union(farm, empty));
+    }
+
+    public void testEmptyBlobs() throws HiveException, IOException {
+        BytesWritable union = union(emptyBlob(), emptyBlob());
+        assertEquals(AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.hashId(union.getBytes(), union.getLength()));
+        assertEquals(0, AstraBitsetCodec.cardinality(union.getBytes(), union.getLength()));
+    }
+}
@@ -0,0 +1,89 @@
+package com.etdm.udf;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Partials of {@link AstraUDAFShardedBitset} merge into the shards their final result is made of.
+ */
+public class AstraUDAFShardedBitsetTest extends TestCase {
+
+    private static final int SHARD_BITS = 6;
+
+    private ObjectInspector partialOI;
+
+    private Object partial(Object... values) throws HiveException {
+        AstraUDAFShardedBitset.ShardedBitSetEvaluator evaluator = new AstraUDAFShardedBitset.ShardedBitSetEvaluator();
+        partialOI = evaluator.init(GenericUDAFEvaluator.Mode.PARTIAL1, new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                        TypeInfoFactory.intTypeInfo, new IntWritable(SHARD_BITS))});
+        GenericUDAFEvaluator.AggregationBuffer buf = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buf);
+        for (Object value : values) {
+            evaluator.iterate(buf, new Object[]{value, SHARD_BITS});
+        }
+        return evaluator.terminatePartial(buf);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<IntWritable, BytesWritable> merge(Object... partials) throws HiveException {
+        AstraUDAFShardedBitset.ShardedBitSetEvaluator evaluator = new AstraUDAFShardedBitset.ShardedBitSetEvaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.FINAL, new ObjectInspector[]{partialOI});
+        GenericUDAFEvaluator.AggregationBuffer buf = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buf);
+        for (Object partial : partials) {
+            evaluator.merge(buf, partial);
+        }
+        return (Map<IntWritable, BytesWritable>) evaluator.terminate(buf);
+    }
+
+    public void testAllNullGroupKeepsShardWidth() throws HiveException, IOException {
+        Map<IntWritable, BytesWritable> shards = merge(partial(null, null, null));
+        assertEquals(1 << SHARD_BITS, shards.size());
+        for (Map.Entry<IntWritable, BytesWritable> shard : shards.entrySet()) {
+            BytesWritable bytes = shard.getValue();
+            assertEquals(SHARD_BITS, AstraBitsetCodec.shardBits(bytes.getBytes(), bytes.getLength()));
+            assertEquals(shard.getKey().get(), AstraBitsetCodec.shard(bytes.getBytes(), bytes.getLength()));
+            assertEquals(0, AstraBitsetCodec.cardinality(bytes.getBytes(), bytes.getLength()));
+        }
+    }
+
+    public void testRoundTrip() throws HiveException, IOException {
+        Object[] values = new Object[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 10 == 0 ? null : "value " + i;
+        }
+        Map<IntWritable, BytesWritable> shards = merge(partial(values), partial(null, null));
+        assertEquals(1 << SHARD_BITS, shards.size());
+        long cardinality = 0;
+        for (BytesWritable bytes : shards.values()) {
+            cardinality += AstraBitsetCodec.cardinality(bytes.getBytes(), bytes.getLength());
+        }
+        assertEquals(values.length - values.length / 10, cardinality);
+    }
+
+    public void testIncompatiblePartials() throws HiveException {
+        Object partial = partial("a", "b", "c");
+        AstraBitmap bitmap = new AstraBitmap();
+        bitmap.add(1);
+        Map<IntWritable, BytesWritable> farm = new LinkedHashMap<>();
+        farm.put(new IntWritable(0), new BytesWritable(new AstraBitsetCodec.Writer().write(bitmap,
+                AstraBitsetCodec.HASH_FARMHASH_64, AstraBitsetCodec.MAX_DOMAIN_BITS, 0, 1, SHARD_BITS, 0)));
+        try {
+            merge(partial, farm);
+            fail("murmur3_32 and farmhash64 shards merged");
+        } catch (HiveException expected) {
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.etdm.udf;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+
+/**
+ * astra_bitset_or of a stored blob and the blob of the new partitions, either of them empty.
+ */
+public class AstraUDFBitsetOrTest extends TestCase {
+
+    private static BytesWritable or(BytesWritable... blobs) throws HiveException {
+        AstraUDFBitsetOr udf = new AstraUDFBitsetOr();
+        ObjectInspector[] ois = new ObjectInspector[blobs.length];
+        GenericUDF.DeferredObject[] args = new GenericUDF.DeferredObject[blobs.length];
+        for (int i = 0; i < blobs.length; i++) {
+            ois[i] = PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            args[i] = new GenericUDF.DeferredJavaObject(blobs[i]);
+        }
+        udf.initialize(ois);
+        return (BytesWritable) udf.evaluate(args);
+    }
+
+    public void testEmptyAndFarmhashBlobs() throws HiveException, IOException {
+        BytesWritable empty = AstraUDAFBitsetUnionTest.emptyBlob();
+        BytesWritable farm = AstraUDAFBitsetUnionTest.farmBlob(1000);
+        AstraUDAFBitsetUnionTest.assertFarm(1000, or(empty, farm));
+        AstraUDAFBitsetUnionTest.assertFarm(1000, or(farm, empty, null));
+    }
+
+    public void testEmptyBlobs() throws HiveException, IOException {
+        BytesWritable or = or(AstraUDAFBitsetUnionTest.emptyBlob(), AstraUDAFBitsetUnionTest.emptyBlob());
+        assertEquals(AstraBitsetCodec.HASH_MURMUR3_32, AstraBitsetCodec.hashId(or.getBytes(), or.getLength()));
+        assertEquals(0, AstraBitsetCodec.cardinality(or.getBytes(), or.getLength()));
+    }
+}
@@ -0,0 +1,246 @@
+package com.etdm.udf;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.hive.common.type.HiveChar;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.common.type.HiveVarchar;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.serde2.io.DateWritable;
+import org.apache.hadoop.hive.serde2.io.TimestampWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import vendor.google.common.hash.Hashing;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Every primitive type lands on the bit the earlier releases gave it:
+ * murmur3_32 of the text Hive prints for the value, {@code String.valueOf} for the numbers.
+ * Timestamps and dates are printed in a zone with daylight saving and a pre-1883 local mean time offset.
+ */
+public class AstraValueHasherTest extends TestCase {
+
+    private TimeZone defaultZone;
+    private AstraValueHasher hasher;
+
+    @Override
+    protected void setUp() {
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        hasher = new AstraValueHasher();
+    }
+
+    @Override
+    protected void tearDown() {
+        TimeZone.setDefault(defaultZone);
+    }
+
+    /**
+     * Position of the earlier releases, astra_bs_0 of the value's text.
+     */
+    private static long baseline(String text) {
+        return (Hashing.murmur3_32().hashUnencodedChars(text).asInt() & Integer.MAX_VALUE) % Integer.MAX_VALUE;
+    }
+
+    private void assertPositions(PrimitiveObjectInspector oi, Object... values) throws UDFArgumentTypeException {
+        AstraColumnHasher column = AstraColumnHasher.of(0, oi, hasher);
+        for (Object value : values) {
+            String text = text(oi, value);
+            long expected = text == null ? AstraColumnHasher.NULL_POSITION : baseline(text);
+            assertEquals(oi.getTypeName() + " " + text, expected, column.position(value));
+        }
+        assertEquals(AstraColumnHasher.NULL_POSITION, column.position(null));
+    }
+
+    /**
+     * Text of the value as the column's inspector reads it, null when it reads a null.
+     */
+    private static String text(PrimitiveObjectInspector oi, Object value) {
+        Object javaValue = oi.getPrimitiveJavaObject(value);
+        if (javaValue == null) {
+            return null;
+        }
+        switch (oi.getPrimitiveCategory()) {
+            case DATE:
+                return new DateWritable((Date) javaValue).toString();
+            case TIMESTAMP:
+                return new TimestampWritable((Timestamp) javaValue).toString();
+            case CHAR:
+                return ((HiveChar) javaValue).getStrippedValue();
+            case VARCHAR:
+                return ((HiveVarchar) javaValue).getValue();
+            default:
+                return String.valueOf(javaValue);
+        }
+    }
+
+    public void testBoolean() throws UDFArgumentTypeException {
+        assertPositions(PrimitiveObjectInspectorFactory.javaBooleanObjectInspector, true, false);
+    }
+
+    public void testIntegers() throws UDFArgumentTypeException {
+        assertPositions(PrimitiveObjectInspectorFactory.javaByteObjectInspector,
+                (byte) 0, (byte) 7, (byte) -1, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        assertPositions(PrimitiveObjectInspectorFactory.javaShortObjectInspector,
+                (short) 0, (short) 12345, (short) -300, Short.MIN_VALUE, Short.MAX_VALUE);
+        assertPositions(PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                0, 5, -5, 1000000, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertPositions(PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                0L, 5L, -5L, 1234567890123456789L, Long.MIN_VALUE, Long.MAX_VALUE);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            assertPositions(PrimitiveObjectInspectorFactory.javaLongObjectInspector, random.nextLong(), (long) random.nextInt());
+        }
+    }
+
+    public void testIntAndStringShareBits() throws UDFArgumentTypeException {
+        AstraColumnHasher ints = AstraColumnHasher.of(0, PrimitiveObjectInspectorFactory.javaIntObjectInspector, hasher);
+        AstraColumnHasher strings = AstraColumnHasher.of(0, PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                new AstraValueHasher());
+        assertEquals(strings.position(new Text("5")), ints.position(5));
+    }
+
+    public void testFloat() throws UDFArgumentTypeException {
+        assertPositions(PrimitiveObjectInspectorFactory.javaFloatObjectInspector,
+                0.0f, -0.0f, 1.0f, -1.0f, 0.1f, 1.5f, 123456.0f, 9999999.0f, -9999999.0f, 1.0e7f, 1.0e-5f,
+                3.4028235e38f, Float.MIN_VALUE, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            assertPositions(PrimitiveObjectInspectorFactory.javaFloatObjectInspector,
+                    (float) random.nextInt(20000000) - 10000000, random.nextFloat() * 1000, Float.intBitsToFloat(random.nextInt()));
+        }
+    }
+
+    public void testDouble() throws UDFArgumentTypeException {
+        assertPositions(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                0.0d, -0.0d, 1.0d, -1.0d, 0.1d, 1.5d, 100.0d, 9999999.0d, -9999999.0d, 1.0e7d, 12345678.0d,
+                1.0e-5d, 1.0e300d, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            assertPositions(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    (double) random.nextInt(20000000) - 10000000, random.nextDouble() * 1000, Double.longBitsToDouble(random.nextLong()));
+        }
+    }
+
+    public void testDecimal() throws UDFArgumentTypeException {
+        PrimitiveObjectInspector[] ois = {
+                PrimitiveObjectInspectorFactory.javaHiveDecimalObjectInspector,
+                PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(TypeInfoFactory.getDecimalTypeInfo(38, 0)),
+                PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(TypeInfoFactory.getDecimalTypeInfo(10, 2))
+        };
+        String[] values = {"0", "0.00", "1", "-1", "1.50", "100", "1E+3", "0.001", "-0.05", "0.0000123",
+                "12345678901234567.89", "-92233720368547758.08", "92233720368547758.07", "9223372036854775808",
+                "-9223372036854775809", "12345678901234567890123456789012345678", "-0.1234567890123456789012345678901234567"};
+        for (PrimitiveObjectInspector oi : ois) {
+            for (String value : values) {
+                assertPositions(oi, HiveDecimal.create(value));
+            }
+            Random random = new Random(4);
+            for (int i = 0; i < 1000; i++) {
+                BigDecimal value = new BigDecimal(new BigInteger(random.nextInt(120) + 1, random), random.nextInt(30) - 5);
+                HiveDecimal decimal = HiveDecimal.create(random.nextBoolean() ? value : value.negate());
+                if (decimal != null) {
+                    assertPositions(oi, decimal);
+                }
+            }
+        }
+    }
+
+    public void testDate() throws UDFArgumentTypeException {
+        String[] values = {"0001-01-01", "0999-12-31", "1500-03-01", "1582-10-04", "1582-10-15", "1600-02-29",
+                "1752-09-14", "1850-06-15", "1883-11-18", "1899-12-31", "1900-02-28", "1969-12-31", "1970-01-01",
+                "2000-02-29", "2015-03-08", "2015-11-01", "2038-01-19", "9999-12-31"};
+        for (String value : values) {
+            assertPositions(PrimitiveObjectInspectorFactory.javaDateObjectInspector, Date.valueOf(value));
+        }
+        Random random = new Random(5);
+        int first = DateWritable.dateToDays(Date.valueOf("0001-01-01"));
+        int last = DateWritable.dateToDays(Date.valueOf("9999-12-31"));
+        for (int i = 0; i < 5000; i++) {
+            assertPositions(PrimitiveObjectInspectorFactory.writableDateObjectInspector,
+                    new DateWritable(first + random.nextInt(last - first + 1)));
+        }
+    }
+
+    public void testTimestamp() throws UDFArgumentTypeException {
+        String[] values = {"1970-01-01 00:00:00", "1969-12-31 23:59:59.999999999", "2015-06-01 12:34:56",
+                "2015-06-01 12:34:56.1", "2015-06-01 12:34:56.12", "2015-06-01 12:34:56.000000001",
+                "2015-06-01 12:34:56.123456789", "2015-03-08 01:59:59", "2015-03-08 03:00:00",
+                "2015-11-01 01:30:00", "2015-11-01 02:00:00", "1960-03-04 05:06:07.5", "1850-06-15 10:00:00.25",
+                "1900-01-01 00:00:00", "1582-10-15 12:00:00", "1500-03-01 08:00:00", "2038-01-19 03:14:08",
+                "9999-12-31 23:59:59.999999999"};
+        for (String value : values) {
+            assertPositions(PrimitiveObjectInspectorFactory.javaTimestampObjectInspector, Timestamp.valueOf(value));
+        }
+        Random random = new Random(6);
+        long first = Timestamp.valueOf("1800-01-01 00:00:00").getTime();
+        long last = Timestamp.valueOf("2200-01-01 00:00:00").getTime();
+        for (int i = 0; i < 5000; i++) {
+            Timestamp timestamp = new Timestamp(first + (long) (random.nextDouble() * (last - first)) / 1000 * 1000);
+            int[] nanos = {0, random.nextInt(1000) * 1000000, random.nextInt(1000000000)};
+            timestamp.setNanos(nanos[random.nextInt(nanos.length)]);
+            assertPositions(PrimitiveObjectInspectorFactory.javaTimestampObjectInspector, timestamp);
+        }
+    }
+
+    public void testText() throws UDFArgumentTypeException {
+        String[] values = {"", "a", "customer-42", "ab  ", "été", "日本語", "😀 emoji",
+                "tab\tand\nnewline", "a long value that spans more than one sixteen byte block of the hash"};
+        for (String value : values) {
+            assertPositions(PrimitiveObjectInspectorFactory.javaStringObjectInspector, value);
+            assertPositions(PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(TypeInfoFactory.getVarcharTypeInfo(100)),
+                    new HiveVarchar(value, 100));
+            assertPositions(PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(TypeInfoFactory.getCharTypeInfo(100)),
+                    new HiveChar(value, 100));
+        }
+        AstraColumnHasher column = AstraColumnHasher.of(0, PrimitiveObjectInspectorFactory.writableStringObjectInspector, hasher);
+        for (String value : values) {
+            assertEquals(value, baseline(value), column.position(new Text(value)));
+        }
+    }
+
+    public void testBinary() throws UDFArgumentTypeException {
+        AstraColumnHasher column = AstraColumnHasher.of(0, PrimitiveObjectInspectorFactory.writableBinaryObjectInspector, hasher);
+        byte[] bytes = {1, 2, 3, (byte) 0xFF};
+        long position = column.position(new BytesWritable(bytes));
+        assertTrue(position >= 0 && position < Integer.MAX_VALUE);
+        assertEquals(position, column.position(new BytesWritable(bytes.clone())));
+        assertEquals(AstraColumnHasher.NULL_POSITION, column.position(null));
+    }
+
+    public void testWideHashes() {
+        String[] values = {"", "5", "customer-42", "日本語", "a long value that spans more than one sixteen byte block"};
+        AstraValueHasher murmur = AstraValueHasher.of("murmur3_128");
+        AstraValueHasher farm = AstraValueHasher.of("farmhash64:36");
+        assertEquals(AstraBitsetCodec.MAX_DOMAIN_BITS, murmur.domainBits());
+        assertEquals(36, farm.domainBits());
+        for (String value : values) {
+            long murmurHash = Hashing.murmur3_128().hashUnencodedChars(value).asLong();
+            long farmHash = Hashing.farmHashFingerprint64().hashUnencodedChars(value).asLong();
+            assertEquals(murmurHash, murmur.hashString(value));
+            assertEquals(farmHash, farm.hashString(value));
+            assertEquals(murmurHash & ((1L << AstraBitsetCodec.MAX_DOMAIN_BITS) - 1), murmur.position(murmur.hashString(value)));
+            assertEquals(farmHash & ((1L << 36) - 1), farm.position(farm.hashString(value)));
+        }
+    }
+
+    public void testSpec() {
+        assertEquals(AstraBitsetCodec.HASH_MURMUR3_32, AstraValueHasher.of("murmur3_32").hashId());
+        assertEquals(AstraBitsetCodec.DOMAIN_BITS_31, AstraValueHasher.of("MURMUR3_32:31").domainBits());
+        for (String spec : new String[]{"md5", "murmur3_32:40", "farmhash64:30", "farmhash64:41", "murmur3_128:x"}) {
+            try {
+                AstraValueHasher.of(spec);
+                fail(spec);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}